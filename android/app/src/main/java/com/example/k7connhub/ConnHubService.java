@@ -5,91 +5,139 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
 import android.content.Intent;
+import android.net.wifi.WifiManager;
 import android.os.IBinder;
-import android.util.Base64;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.NetworkInterface;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-import fi.iki.elonen.NanoHTTPD;
-
 public class ConnHubService extends Service {
-    private WebServer server;
+    private HubHttp.Engine server;
     private File tempDir;
-
-    // Text Data
-    private String textData = "";
-    private long textTs = 0;
-    private final Object textLock = new Object();
-
-    // File Data
-    private static class FileEntry {
-        String name;
-        long size;
-        FileEntry(String n, long s) { name = n; size = s; }
-    }
-    private final List<FileEntry> filesData = new ArrayList<>();
-    private long filesTs = 0;
-    private final Object filesLock = new Object();
+    private File spoolDir; // upload parts, same filesystem as tempDir
+    private FolderShare folderShare;
+    private ThumbCache thumbCache;
+    private ScheduledExecutorService journalIo; // text journals of all rooms
+    private ExecutorService bulkIo; // download-all zips and peer fetches, kept off engine threads
+    private TransferLocks transferLocks; // null when disabled
+    private static final int TEXT_LIMIT = 10485760; // default max text bytes, set in main screen
+    private int textLimit = TEXT_LIMIT;
+    private Throttle throttle = new Throttle(0, 0);
+
+    // Rooms, default room is served at / and stored in tempDir
+    private Room defaultRoom;
+    private File roomsDir; // named rooms, tempDir/.rooms/{name}
+    private final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private static final int MAX_ROOMS = 64; // named rooms on disk, created by clients and peers
+
+    // Federation, null when running alone
+    private Federation federation;
+    private WifiManager.MulticastLock multicastLock;
+    private final Map<String, Object> fetchLocks = new ConcurrentHashMap<>(); // one peer fetch per file
 
     @Override
     public void onCreate() {
         super.onCreate();
         tempDir = new File(getFilesDir(), "temp");
         if (!tempDir.exists()) tempDir.mkdirs(); // make temp dir
+        roomsDir = new File(tempDir, ".rooms");
+        spoolDir = new File(getFilesDir(), "spool");
+        File[] stale = spoolDir.listFiles();
+        if (stale != null) for (File f : stale) f.delete(); // interrupted uploads
+        thumbCache = new ThumbCache(new File(getCacheDir(), "thumbs"), 64L * 1048576); // 64MiB previews
+        journalIo = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "ConnHub-journal"));
+        bulkIo = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r, "ConnHub-bulk");
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         createNotificationChannel();
-        Notification notification = new NotificationCompat.Builder(this, "ConnHub")
-                .setContentTitle("ConnHub Server")
-                .setContentText("HTTP Server is running...")
-                .setSmallIcon(R.drawable.icon_service)
-                .build();
-        startForeground(1, notification);
+        startForeground(1, buildNotification());
 
         int port = intent.getIntExtra("port", 8000);
         boolean delFiles = intent.getBooleanExtra("delFiles", false);
         boolean showIpv6 = intent.getBooleanExtra("showIpv6", false);
+        boolean useNio = intent.getBooleanExtra("useNio", false);
+        boolean federate = intent.getBooleanExtra("federate", false);
+        boolean transferLock = intent.getBooleanExtra("transferLock", false);
+        textLimit = intent.getIntExtra("textLimit", TEXT_LIMIT);
+        long rateTotal = intent.getLongExtra("rateTotal", 0); // bytes per second, 0 is unlimited
+        long rateClient = intent.getLongExtra("rateClient", 0);
+        IO1.VFile shareDir = intent.getParcelableExtra("shareDir", IO1.VFile.class);
 
         // delete file if required
+        closeJournals(); // previous start, same journal files are opened again
+        rooms.clear();
+        defaultRoom = new Room("", tempDir);
+        defaultRoom.openJournal(journalIo);
         if (delFiles) {
-            File[] files = tempDir.listFiles();
-            if (files != null) for (File f : files) f.delete();
-            filesData.clear();
+            defaultRoom.clearFiles();
+            File[] dirs = roomsDir.listFiles();
+            if (dirs != null) for (File d : dirs) new Room(d.getName(), d).clearFiles();
         } else {
-            loadExistingFiles();
+            logToMain("Loaded " + defaultRoom.loadExistingFiles() + " existing files");
+        }
+
+        // shared folder, browsed in place
+        if (folderShare != null) folderShare.shutdown();
+        folderShare = null;
+        if (shareDir != null) {
+            folderShare = new FolderShare(this, shareDir);
+            logToMain("Sharing folder: " + folderShare.getName());
         }
 
+        // transfer shaping, control endpoints are not limited
+        throttle = new Throttle(rateTotal, rateClient);
+        if (throttle.isEnabled()) logToMain("Rate limit: total " + rateTotal / 1024 + " KB/s, client " + rateClient / 1024 + " KB/s");
+
         // start server
-        textTs = System.currentTimeMillis();
-        filesTs = System.currentTimeMillis();
         try {
-            server = new WebServer(port);
-            server.start(NanoHTTPD.SOCKET_READ_TIMEOUT, false);
-            logToMain("Server initialized on port " + port);
+            HubHttp.Handler routes = new Routes();
+            if (transferLock) {
+                // keep Wi-Fi out of power save while requests are in flight
+                transferLocks = new TransferLocks(this, this::updateNotification);
+                routes = transferLocks.wrap(routes);
+                updateNotification();
+            }
+            server = useNio ? new NioServer(port, routes) : new NanoServer(port, routes);
+            server.start();
+            logToMain("Server initialized on port " + port + (useNio ? " (NIO)" : ""));
             broadcastIps(port, showIpv6);
+            if (federate) startFederation(port);
         } catch (Exception e) {
             logToMain("Error starting server: " + e.getMessage());
             stopSelf();
@@ -98,232 +146,697 @@ public class ConnHubService extends Service {
         return START_NOT_STICKY;
     }
 
-    private class WebServer extends NanoHTTPD {
-        public WebServer(int port) {
-            super(port);
+    // HTTP routes, shared by both server engines
+    private class Routes implements HubHttp.Handler {
+        // shared folder listings query storage providers, which can take seconds
+        @Override
+        public boolean blocks(HubHttp.Request req) {
+            return req.uri.contains("/api/folder/");
         }
 
         @Override
-        public Response serve(IHTTPSession session) {
-            String uri = session.getUri();
-            Method method = session.getMethod();
+        public HubHttp.Response handle(HubHttp.Request req) {
+            String uri = req.uri;
+            String method = req.method;
+
+            // room prefix, /r/{room}/... is routed like / on that room
+            Room room = defaultRoom;
+            if (uri.startsWith("/r/")) {
+                int slash = uri.indexOf('/', 3);
+                String name = slash < 0 ? uri.substring(3) : uri.substring(3, slash);
+                if (!Room.isValidName(name)) return HubHttp.Response.text(404, "Invalid room");
+                if (slash < 0) return HubHttp.Response.text(301, "").header("Location", uri + "/"); // relative api paths need trailing slash
+                room = getRoom(name, !method.equals("GET") && !method.equals("HEAD")); // only writes create rooms
+                if (room == null) return HubHttp.Response.text(503, "Room limit reached");
+                uri = uri.substring(slash);
+            }
 
             try {
                 // 1. Static Files
-                if (method == Method.GET && uri.equals("/")) {
+                if (method.equals("GET") && uri.equals("/")) {
                     InputStream is = getAssets().open("index.html");
-                    return newChunkedResponse(Response.Status.OK, "text/html; charset=utf-8", is);
+                    return HubHttp.Response.stream(200, "text/html; charset=utf-8", is);
                 }
-                if (method == Method.GET && uri.equals("/favicon.ico")) {
+                if (method.equals("GET") && uri.equals("/favicon.ico")) {
                     InputStream is = getAssets().open("favicon.ico");
-                    return newChunkedResponse(Response.Status.OK, "image/x-icon", is);
+                    return HubHttp.Response.stream(200, "image/x-icon", is);
                 }
 
                 // 2. State Sync
-                if (method == Method.GET && uri.equals("/api/state")) {
+                if (method.equals("GET") && uri.equals("/api/state")) {
                     long clientTextTs = 0;
                     long clientFilesTs = 0;
                     try {
-                        if (session.getParameters().containsKey("text_ts")) clientTextTs = Long.parseLong(session.getParameters().get("text_ts").get(0));
-                        if (session.getParameters().containsKey("files_ts")) clientFilesTs = Long.parseLong(session.getParameters().get("files_ts").get(0));
+                        clientTextTs = Long.parseLong(req.param("text_ts", "0"));
+                        clientFilesTs = Long.parseLong(req.param("files_ts", "0"));
                     } catch (Exception ignored) {}
 
                     JSONObject resp = new JSONObject();
 
                     // update text
-                    synchronized (textLock) {
+                    synchronized (room.textLock) {
                         JSONObject tObj = new JSONObject();
-                        if (textTs > clientTextTs) {
-                            tObj.put("updated", true); tObj.put("data", textData); tObj.put("ts", textTs);
+                        if (room.textTs > clientTextTs) {
+                            tObj.put("updated", true); tObj.put("ts", room.textTs); // text itself from GET /api/text
                         } else { tObj.put("updated", false); }
                         resp.put("text", tObj);
                     }
 
                     // update file list
-                    synchronized (filesLock) {
+                    synchronized (room.filesLock) {
                         JSONObject fObj = new JSONObject();
-                        if (filesTs > clientFilesTs) {
+                        if (room.filesTs > clientFilesTs) {
                             fObj.put("updated", true);
-                            JSONArray arr = new JSONArray();
-                            for (FileEntry f : filesData) {
-                                JSONObject o = new JSONObject(); o.put("name", f.name); o.put("size", f.size); arr.put(o);
+                            if (!req.param("files_data", "1").equals("0")) { // paged clients use /api/files
+                                JSONArray arr = new JSONArray();
+                                for (Room.FileEntry f : room.filesData.values()) arr.put(fileJson(f));
+                                fObj.put("data", arr);
                             }
-                            fObj.put("data", arr); fObj.put("ts", filesTs);
+                            fObj.put("count", room.filesData.size()); fObj.put("ts", room.filesTs);
                         } else { fObj.put("updated", false); }
                         resp.put("files", fObj);
                     }
 
                     // send json response
-                    return newFixedLengthResponse(Response.Status.OK, "application/json; charset=utf-8", resp.toString());
+                    return HubHttp.Response.json(resp.toString());
                 }
 
-                // 3. Text Update
-                if (method == Method.POST && uri.equals("/api/text")) {
-                    Map<String, String> files = new HashMap<>();
-                    session.parseBody(files);
-
-                    // get text from body
-                    String bodyText = files.get("postData");
-                    if (bodyText == null) bodyText = "";
+                // 3. Text, raw utf8 bytes, PUT streams body into one array
+                if (method.equals("GET") && uri.equals("/api/text")) {
+                    byte[] data;
+                    long ts;
+                    synchronized (room.textLock) {
+                        data = room.textData; // immutable, sent without copy
+                        ts = room.textTs;
+                    }
+                    String etag = "\"" + ts + "\"";
+                    HubHttp.Response res = etag.equals(req.header("if-none-match"))
+                            ? HubHttp.Response.bytes(304, "text/plain; charset=utf-8", new byte[0])
+                            : HubHttp.Response.bytes(200, "text/plain; charset=utf-8", data);
+                    res.header("ETag", etag);
+                    res.header("Cache-Control", "no-cache");
+                    return res;
+                }
+                if ((method.equals("PUT") || method.equals("POST")) && uri.equals("/api/text")) {
+                    if (req.contentLength > textLimit) return HubHttp.Response.text(413, "Text over " + textLimit + " bytes");
+                    byte[] bodyData = req.bodyBytes(textLimit);
 
                     // update text
-                    synchronized (textLock) {
-                        textData = bodyText;
-                        textTs = System.currentTimeMillis();
+                    synchronized (room.textLock) {
+                        room.textData = bodyData;
+                        room.textTs = room.nextTs(room.textTs);
+                        room.journal.record(bodyData, room.textTs); // written behind
                         JSONObject res = new JSONObject();
-                        res.put("ts", textTs);
-                        return newFixedLengthResponse(Response.Status.OK, "application/json; charset=utf-8", res.toString());
+                        res.put("ts", room.textTs);
+                        notifyPeers();
+                        return HubHttp.Response.json(res.toString());
                     }
                 }
 
                 // 4. File Upload
-                if (method == Method.POST && uri.equals("/api/files/upload")) {
-                    Map<String, String> files = new HashMap<>();
-                    session.parseBody(files);
-                    String tempFilePath = files.get("file"); // system temp file path
-                    String encodedName = session.getParameters().get("filename").get(0); // Base64 name
-
-                    if (tempFilePath != null && encodedName != null) {
-                        File finalFile = new File(tempDir, encodedName);
-                        if (finalFile.exists()) finalFile.delete();
-                        File tempFileObj = new File(tempFilePath);
-
-                        // change temp file name to stored name
-                        if (!tempFileObj.renameTo(finalFile)) {
-                            InputStream in = new FileInputStream(tempFileObj);
-                            FileOutputStream out = new FileOutputStream(finalFile);
-                            byte[] buf = new byte[65536]; // copy if name change failed
-                            int len;
-                            while ((len = in.read(buf)) > 0) out.write(buf, 0, len);
-                            in.close();
-                            out.close();
-                            tempFileObj.delete();
-                        }
+                if (method.equals("POST") && uri.equals("/api/files/upload")) {
+                    HubHttp.Request shaped = req.withBody(throttle.wrap(req.body, req.remoteIp, Throttle.WEIGHT_FILE));
+                    List<HubHttp.Part> parts = HubHttp.parseMultipart(shaped, spoolDir);
+                    File tempFileObj = null; // spooled part file
+                    String encodedName = req.param("filename", null); // Base64 name
+                    for (HubHttp.Part part : parts) {
+                        if ("file".equals(part.name) && part.file != null) tempFileObj = part.file;
+                        if ("filename".equals(part.name) && part.value != null) encodedName = part.value.trim();
+                    }
+                    if (encodedName != null && !Room.isValidFileName(encodedName)) {
+                        HubHttp.deleteParts(parts);
+                        return HubHttp.Response.text(400, "Filename must be base64url"); // no paths, no clash with name.gz
+                    }
+
+                    if (tempFileObj != null && encodedName != null) {
+                        Staged staged = null;
+                        Room.FileEntry entry;
+                        try {
+                            staged = stageUpload(encodedName, tempFileObj);
 
-                        // update file list
-                        synchronized (filesLock) {
-                            Iterator<FileEntry> it = filesData.iterator();
-                            while (it.hasNext()) {
-                                if (it.next().name.equals(encodedName)) it.remove();
+                            // move in and update file list
+                            synchronized (room.filesLock) {
+                                entry = publishUploads(room, Collections.singletonList(staged)).get(0);
+                                room.filesTs = room.nextTs(room.filesTs);
                             }
-                            filesData.add(new FileEntry(encodedName, finalFile.length()));
-                            filesTs = System.currentTimeMillis();
+                        } finally {
+                            HubHttp.deleteParts(parts);
+                            if (staged != null) staged.file.delete(); // left only on failure
                         }
-                        logToMain("Uploaded: " + encodedName);
-                        return newFixedLengthResponse(Response.Status.OK, "text/plain", "ok");
+                        notifyPeers();
+                        logToMain(room.tag() + "Uploaded: " + encodedName + (entry.gz ? " (gzip " + room.storedFile(entry).length() * 100 / Math.max(1, entry.size) + "%)" : ""));
+                        return HubHttp.Response.text(200, "ok");
                     }
-                    return newFixedLengthResponse(Response.Status.BAD_REQUEST, "text/plain", "Missing file or filename");
+                    HubHttp.deleteParts(parts);
+                    return HubHttp.Response.text(400, "Missing file or filename");
                 }
 
                 // 5. Download Single File
-                if (method == Method.GET && uri.startsWith("/api/files/download/")) {
+                if (method.equals("GET") && uri.startsWith("/api/files/download/")) {
                     String encodedName = uri.substring(uri.lastIndexOf('/') + 1);
-                    File file = new File(tempDir, encodedName);
-
-                    if (file.exists()) {
-                        String realName = session.getParameters().get("name").get(0);
-                        if (realName == null) realName = encodedName;
-                        String headerName = URLEncoder.encode(realName, "UTF-8").replace("+", "%20"); // URL-safe utf8
-
+                    if (!Room.isValidFileName(encodedName)) return HubHttp.Response.text(404, "Not found");
+                    Room.FileEntry entry;
+                    String holder;
+                    synchronized (room.filesLock) {
+                        entry = room.findFile(encodedName);
+                        holder = entry != null ? entry.peer : null;
+                    }
+                    boolean gz = entry != null && entry.gz;
+                    File file = gz ? room.storedFile(entry) : new File(room.dir, encodedName);
+                    boolean fromPeer = !file.exists() && holder != null && req.header(Federation.PEER_HEADER) == null; // peers never chain
+                    if (!file.exists() && !fromPeer) return HubHttp.Response.text(404, "Not found");
+
+                    String realName = req.param("name", encodedName);
+                    String headerName = URLEncoder.encode(realName, "UTF-8").replace("+", "%20"); // URL-safe utf8
+                    HubHttp.Response res;
+                    if (fromPeer) {
+                        // fetched by bulk worker while streaming, engine thread is not held for whole copy
+                        res = HubHttp.Response.stream(200, "application/octet-stream", throttle.wrap(peerStream(room, encodedName), req.remoteIp, Throttle.WEIGHT_FILE));
+                    } else if (gz && GzipStore.accepts(req.header("accept-encoding"))) {
+                        // stored bytes as is, client inflates
+                        res = new HubHttp.Response(200, "application/octet-stream", throttle.wrap(new FileInputStream(file), req.remoteIp, Throttle.WEIGHT_FILE), file.length());
+                        res.header("Content-Encoding", "gzip");
+                    } else {
                         FileInputStream fis = new FileInputStream(file);
-                        Response res = newChunkedResponse(Response.Status.OK, "application/octet-stream", fis);
-                        res.addHeader("Content-Disposition", "attachment; filename*=UTF-8''" + headerName);
-                        return res;
+                        InputStream in = gz ? new GZIPInputStream(fis, 65536) : fis;
+                        res = HubHttp.Response.stream(200, "application/octet-stream", throttle.wrap(in, req.remoteIp, Throttle.WEIGHT_FILE));
                     }
-                    return newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "Not found");
+                    if (gz) res.header("Vary", "Accept-Encoding");
+                    res.header("Content-Disposition", "attachment; filename*=UTF-8''" + headerName);
+                    return res;
                 }
 
-                // 6. Download All (ZIP)
-                if (method == Method.GET && uri.equals("/api/files/download-all")) {
-                    File zipFile = new File(getCacheDir(), "files.zip");
-                    ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile));
-
-                    // compress to zip
-                    synchronized (filesLock) {
-                        for (FileEntry entry : filesData) {
-                            String realName = entry.name;
-                            try {
-                                byte[] decodedBytes = Base64.decode(entry.name, Base64.URL_SAFE);
-                                realName = new String(decodedBytes, "UTF-8");
-                            } catch (Exception ignored) {}
-
-                            // put file to zip
-                            zos.putNextEntry(new ZipEntry(realName));
-                            FileInputStream fis = new FileInputStream(new File(tempDir, entry.name));
-                            byte[] buf = new byte[65536];
-                            int len;
-                            while ((len = fis.read(buf)) > 0) zos.write(buf, 0, len);
-                            fis.close();
-                            zos.closeEntry();
-                        }
+                // 6. Download All (ZIP), written by bulk worker into pipe, peer files are fetched there too
+                if (method.equals("GET") && uri.equals("/api/files/download-all")) {
+                    List<Room.FileEntry> entries;
+                    synchronized (room.filesLock) {
+                        entries = new ArrayList<>(room.filesData.values());
                     }
-                    zos.close();
-
-                    // override to delete automatically
-                    FileInputStream fis = new FileInputStream(zipFile) {
-                        @Override
-                        public void close() throws IOException {
-                            super.close();
-                            if (zipFile.exists()) {
-                                zipFile.delete();
-                                logToMain("Temp zip file deleted after transfer");
+
+                    HubHttp.Pipe pipe = new HubHttp.Pipe(65536);
+                    Room zipRoom = room;
+                    bulkIo.execute(() -> {
+                        try {
+                            ZipOutputStream zos = new ZipOutputStream(pipe.sink());
+                            byte[] buf = new byte[65536];
+                            for (Room.FileEntry entry : entries) {
+                                File file = entry.gz ? zipRoom.storedFile(entry) : fetchFromPeer(zipRoom, entry.name);
+                                if (!file.exists()) continue; // deleted meanwhile or holder gone
+
+                                // put file to zip, gzip stored files are inflated to content
+                                zos.putNextEntry(new ZipEntry(Room.decodeName(entry.name)));
+                                try (InputStream fis = entry.gz ? new GZIPInputStream(new FileInputStream(file), 65536) : new FileInputStream(file)) {
+                                    int len;
+                                    while ((len = fis.read(buf)) > 0) zos.write(buf, 0, len);
+                                }
+                                zos.closeEntry();
                             }
+                            zos.close();
+                        } catch (IOException | RuntimeException e) {
+                            pipe.fail(e); // client sees broken transfer, not a short archive
                         }
-                    };
+                    });
 
-                    // read temp zip and send
-                    Response res = newChunkedResponse(Response.Status.OK, "application/zip", fis);
-                    res.addHeader("Content-Disposition", "attachment; filename=\"files.zip\"");
+                    HubHttp.Response res = HubHttp.Response.stream(200, "application/zip", throttle.wrap(pipe, req.remoteIp, Throttle.WEIGHT_BULK));
+                    res.header("Content-Disposition", "attachment; filename=\"files.zip\"");
                     return res;
                 }
 
                 // 7. Delete File
-                if (method == Method.DELETE && uri.startsWith("/api/files/delete/")) {
+                if (method.equals("DELETE") && uri.startsWith("/api/files/delete/")) {
                     String encodedName = uri.substring(uri.lastIndexOf('/') + 1);
-                    synchronized (filesLock) {
-                        Iterator<FileEntry> it = filesData.iterator();
-                        while (it.hasNext()) {
-                            if (it.next().name.equals(encodedName)) it.remove();
-                        }
-                        new File(tempDir, encodedName).delete();
-                        filesTs = System.currentTimeMillis();
+                    if (!Room.isValidFileName(encodedName)) return HubHttp.Response.text(404, "Not found");
+                    synchronized (room.filesLock) {
+                        Room.FileEntry entry = room.findFile(encodedName);
+                        room.markDeleted(encodedName, room.nextTs(entry != null ? entry.time : 0));
+                        room.removeFile(encodedName);
+                        room.deleteStored(encodedName);
+                        room.filesTs = room.nextTs(room.filesTs);
                     }
-                    logToMain("Deleted: " + encodedName);
-                    return newFixedLengthResponse(Response.Status.OK, "text/plain", "ok");
+                    notifyPeers();
+                    logToMain(room.tag() + "Deleted: " + encodedName);
+                    return HubHttp.Response.text(200, "ok");
                 }
 
                 // 8. Delete All
-                if (method == Method.DELETE && uri.equals("/api/files/delete-all")) {
-                    synchronized (filesLock) {
-                        for (FileEntry f : filesData) {
-                            new File(tempDir, f.name).delete();
+                if (method.equals("DELETE") && uri.equals("/api/files/delete-all")) {
+                    synchronized (room.filesLock) {
+                        for (Room.FileEntry f : room.filesData.values()) {
+                            room.markDeleted(f.name, room.nextTs(f.time));
+                            room.deleteStored(f.name);
+                        }
+                        room.clearIndex();
+                        room.filesTs = room.nextTs(room.filesTs);
+                    }
+                    notifyPeers();
+                    logToMain(room.tag() + "Deleted all files");
+                    return HubHttp.Response.text(200, "ok");
+                }
+
+                // 9. Shared Folder
+                if (method.equals("GET") && uri.startsWith("/api/folder/")) {
+                    if (folderShare == null) return HubHttp.Response.text(404, "No shared folder");
+                    String path = req.param("path", "");
+
+                    // list directory by page
+                    if (uri.equals("/api/folder/list")) {
+                        int offset, limit;
+                        try {
+                            offset = Integer.parseInt(req.param("offset", "0"));
+                            limit = Math.min(1000, Integer.parseInt(req.param("limit", "200")));
+                        } catch (NumberFormatException e) {
+                            offset = limit = -1;
+                        }
+                        if (offset < 0 || limit < 1) return HubHttp.Response.text(400, "Bad offset or limit");
+                        FolderShare.Listing listing = folderShare.list(path, req.param("refresh", "").equals("1"));
+
+                        JSONArray arr = new JSONArray();
+                        int end = Math.min(listing.entries.size(), offset + limit);
+                        for (int i = offset; i < end; i++) {
+                            FolderShare.Entry e = listing.entries.get(i);
+                            JSONObject o = new JSONObject();
+                            o.put("name", e.name); o.put("dir", e.isDir); o.put("size", e.size); o.put("time", e.modified);
+                            arr.put(o);
+                        }
+                        JSONObject resp = new JSONObject();
+                        resp.put("root", folderShare.getName()); resp.put("path", path);
+                        resp.put("total", listing.entries.size()); resp.put("offset", offset);
+                        resp.put("next", end < listing.entries.size() ? end : -1);
+                        resp.put("items", arr);
+                        return HubHttp.Response.json(resp.toString());
+                    }
+
+                    // download single file
+                    if (uri.equals("/api/folder/file")) {
+                        FolderShare.Entry entry = folderShare.find(path);
+                        if (entry.isDir) return HubHttp.Response.text(400, "Not a file");
+                        String headerName = URLEncoder.encode(entry.name, "UTF-8").replace("+", "%20");
+                        HubHttp.Response res = HubHttp.Response.stream(200, "application/octet-stream",
+                                throttle.wrap(folderShare.openFile(path), req.remoteIp, Throttle.WEIGHT_FILE));
+                        res.header("Content-Disposition", "attachment; filename*=UTF-8''" + headerName);
+                        return res;
+                    }
+
+                    // download subtree as streamed zip
+                    if (uri.equals("/api/folder/zip")) {
+                        if (!path.isEmpty() && !folderShare.find(path).isDir) return HubHttp.Response.text(400, "Not a directory");
+                        String zipName = path.isEmpty() ? folderShare.getName() : path.substring(path.lastIndexOf('/') + 1);
+                        String headerName = URLEncoder.encode(zipName + ".zip", "UTF-8").replace("+", "%20");
+                        HubHttp.Response res = HubHttp.Response.stream(200, "application/zip",
+                                throttle.wrap(folderShare.openZip(path), req.remoteIp, Throttle.WEIGHT_BULK));
+                        res.header("Content-Disposition", "attachment; filename*=UTF-8''" + headerName);
+                        logToMain("Folder zip: /" + path);
+                        return res;
+                    }
+                }
+
+                // 10. Thumbnail, previews are immutable for name+size+mtime
+                if (method.equals("GET") && uri.startsWith("/api/files/thumb/")) {
+                    String encodedName = uri.substring(uri.lastIndexOf('/') + 1);
+                    String realName = Room.decodeName(encodedName);
+                    Room.FileEntry entry;
+                    synchronized (room.filesLock) {
+                        entry = Room.isValidFileName(encodedName) ? room.findFile(encodedName) : null;
+                    }
+                    File file = entry != null && !entry.gz ? room.storedFile(entry) : null; // gzip content cannot be decoded in place
+                    if (file == null || !file.isFile() || !ThumbCache.isSupported(realName)) {
+                        return HubHttp.Response.text(404, "No preview");
+                    }
+
+                    File thumb;
+                    try {
+                        thumb = thumbCache.get(file, realName, 0); // no wait on engine thread, page retries
+                    } catch (TimeoutException e) {
+                        return HubHttp.Response.text(503, "Preview pending").header("Retry-After", "2");
+                    }
+                    if (thumb == null) return HubHttp.Response.text(404, "No preview");
+
+                    // revalidate by etag, cache for long time
+                    String etag = "\"" + thumb.getName() + "\"";
+                    HubHttp.Response res;
+                    if (etag.equals(req.header("if-none-match"))) {
+                        res = HubHttp.Response.bytes(304, "image/jpeg", new byte[0]);
+                    } else {
+                        res = new HubHttp.Response(200, "image/jpeg", new FileInputStream(thumb), thumb.length());
+                    }
+                    res.header("ETag", etag);
+                    res.header("Cache-Control", "public, max-age=31536000, immutable");
+                    return res;
+                }
+
+                // 11. Text History, newest first, single version by ts
+                if (method.equals("GET") && uri.equals("/api/text/history")) {
+                    if (room.journal == null) return HubHttp.Response.json("{\"versions\":[]}"); // room not created yet
+                    String ts = req.param("ts", null);
+                    if (ts != null) {
+                        long version;
+                        try {
+                            version = Long.parseLong(ts);
+                        } catch (NumberFormatException e) {
+                            return HubHttp.Response.text(400, "Bad ts");
+                        }
+                        TextJournal.Version v = room.journal.find(version);
+                        if (v == null) return HubHttp.Response.text(404, "Version not kept");
+                        return HubHttp.Response.bytes(200, "text/plain; charset=utf-8", v.data);
+                    }
+                    JSONArray arr = new JSONArray();
+                    for (TextJournal.Version v : room.journal.history()) {
+                        String text = v.text();
+                        JSONObject o = new JSONObject();
+                        o.put("ts", v.ts); o.put("size", v.size()); o.put("preview", text.length() > 80 ? text.substring(0, 80) : text);
+                        arr.put(o);
+                    }
+                    JSONObject resp = new JSONObject();
+                    resp.put("versions", arr);
+                    return HubHttp.Response.json(resp.toString());
+                }
+
+                // 12. File Page, sorted index with cursor, search over decoded names
+                if (method.equals("GET") && uri.equals("/api/files")) {
+                    int limit = Math.min(1000, Math.max(1, Integer.parseInt(req.param("limit", "100"))));
+                    String prefix = req.param("prefix", ""), query = req.param("q", "");
+                    Room.Page page;
+                    try {
+                        page = room.page(req.param("sort", "name"), req.param("order", "asc").equals("desc"), req.param("cursor", null),
+                                prefix.isEmpty() ? null : prefix, query.isEmpty() ? null : query, limit);
+                    } catch (IllegalArgumentException e) {
+                        return HubHttp.Response.text(400, e.getMessage());
+                    }
+                    JSONArray arr = new JSONArray();
+                    for (Room.FileEntry f : page.items) arr.put(fileJson(f));
+                    JSONObject resp = new JSONObject();
+                    resp.put("items", arr); resp.put("next", page.next != null ? page.next : JSONObject.NULL);
+                    resp.put("total", page.total); resp.put("roomTotal", page.roomTotal);
+                    return HubHttp.Response.json(resp.toString());
+                }
+
+                // 13. Federation state, pulled by peer hubs
+                if (method.equals("GET") && uri.equals(Federation.STATE_PATH) && federation != null) {
+                    return HubHttp.Response.text(200, federation.dumpState(req.param("since", null)));
+                }
+
+                // 14. Batch Upload, filename fields pair with file parts in order, published as one list update
+                if (method.equals("POST") && uri.equals("/api/files/upload-batch")) {
+                    HubHttp.Request shaped = req.withBody(throttle.wrap(req.body, req.remoteIp, Throttle.WEIGHT_FILE));
+                    List<HubHttp.Part> parts = HubHttp.parseMultipart(shaped, spoolDir);
+                    List<String> names = new ArrayList<>();
+                    List<File> files = new ArrayList<>();
+                    for (HubHttp.Part part : parts) {
+                        if ("file".equals(part.name) && part.file != null) files.add(part.file);
+                        if ("filename".equals(part.name) && part.value != null) names.add(part.value.trim());
+                    }
+                    if (files.isEmpty() || names.size() != files.size()) {
+                        HubHttp.deleteParts(parts);
+                        return HubHttp.Response.text(400, "Missing file or filename");
+                    }
+                    for (String name : names) {
+                        if (Room.isValidFileName(name)) continue;
+                        HubHttp.deleteParts(parts);
+                        return HubHttp.Response.text(400, "Filename must be base64url"); // no paths, no clash with name.gz
+                    }
+
+                    // stage all in spool, room is untouched until whole batch is ready
+                    List<Staged> staged = new ArrayList<>();
+                    long ts;
+                    try {
+                        for (int i = 0; i < files.size(); i++) staged.add(stageUpload(names.get(i), files.get(i)));
+
+                        // renames within filesystem and one list update, pollers see whole batch or nothing
+                        synchronized (room.filesLock) {
+                            publishUploads(room, staged);
+                            ts = room.filesTs = room.nextTs(room.filesTs);
                         }
-                        filesData.clear();
-                        filesTs = System.currentTimeMillis();
+                    } finally {
+                        HubHttp.deleteParts(parts);
+                        for (Staged s : staged) s.file.delete(); // left only on failure
                     }
-                    logToMain("Deleted all files");
-                    return newFixedLengthResponse(Response.Status.OK, "text/plain", "ok");
+                    notifyPeers();
+                    logToMain(room.tag() + "Uploaded " + staged.size() + " files");
+                    JSONObject res = new JSONObject();
+                    res.put("count", staged.size()); res.put("ts", ts);
+                    return HubHttp.Response.json(res.toString());
                 }
 
+                // 15. Batch Delete, body {"names": [...]}, one list update
+                if (method.equals("POST") && uri.equals("/api/files/delete-batch")) {
+                    if (req.contentLength > 1048576) return HubHttp.Response.text(413, "Body over 1048576 bytes");
+                    List<String> names = new ArrayList<>();
+                    try {
+                        JSONArray arr = new JSONObject(req.bodyText(1048576)).getJSONArray("names");
+                        for (int i = 0; i < arr.length(); i++) names.add(arr.getString(i));
+                    } catch (JSONException | IllegalArgumentException e) {
+                        return HubHttp.Response.text(400, "Missing names");
+                    }
+                    int count = 0;
+                    long ts;
+                    synchronized (room.filesLock) {
+                        for (String encodedName : names) {
+                            if (!Room.isValidFileName(encodedName)) continue;
+                            Room.FileEntry entry = room.findFile(encodedName);
+                            room.markDeleted(encodedName, room.nextTs(entry != null ? entry.time : 0));
+                            room.removeFile(encodedName);
+                            room.deleteStored(encodedName);
+                            if (entry != null) count++;
+                        }
+                        ts = room.filesTs = room.nextTs(room.filesTs);
+                    }
+                    notifyPeers();
+                    logToMain(room.tag() + "Deleted " + count + " files");
+                    JSONObject res = new JSONObject();
+                    res.put("count", count); res.put("ts", ts);
+                    return HubHttp.Response.json(res.toString());
+                }
+
+            } catch (FileNotFoundException e) {
+                return HubHttp.Response.text(404, "Not found");
+            } catch (SecurityException e) {
+                return HubHttp.Response.text(403, "Access to shared folder lost"); // permission revoked, pick folder again
             } catch (Exception e) {
-                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, "text/plain", "Error: " + e.getMessage());
+                return HubHttp.Response.text(500, "Error: " + e.getMessage());
             }
 
-            return newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "Not Found");
+            return HubHttp.Response.text(404, "Not Found");
+        }
+    }
+
+    // Upload in stored form, still in spool dir
+    private static class Staged {
+        final String name;
+        final long size; // logical
+        final File file;
+        final boolean gz;
+
+        Staged(String name, long size, File file, boolean gz) {
+            this.name = name;
+            this.size = size;
+            this.file = file;
+            this.gz = gz;
+        }
+    }
+
+    // text-like content is stored gzip so CPU is spent once here, room is not touched
+    private Staged stageUpload(String encodedName, File spooled) throws IOException {
+        long size = spooled.length();
+        File packed = ThumbCache.isSupported(Room.decodeName(encodedName)) ? null : GzipStore.compress(spooled, spoolDir); // previews decode stored file
+        return new Staged(encodedName, size, packed != null ? packed : spooled, packed != null);
+    }
+
+    /**
+     * Move staged uploads to stored names and index them, all or nothing, call with filesLock
+     * old content is kept aside in spool until every move succeeded, put back if one fails
+     */
+    private List<Room.FileEntry> publishUploads(Room room, List<Staged> batch) throws IOException {
+        List<File[]> undo = new ArrayList<>(); // {moved to, moved from}, from is null for new content
+        List<Room.FileEntry> entries = new ArrayList<>();
+        try {
+            for (Staged s : batch) {
+                File stored = new File(room.dir, s.gz ? s.name + GzipStore.SUFFIX : s.name);
+                for (File old : new File[]{stored, new File(room.dir, s.gz ? s.name : s.name + GzipStore.SUFFIX)}) {
+                    if (!old.exists()) continue;
+                    File aside = File.createTempFile("old", null, spoolDir);
+                    if (!old.renameTo(aside)) {
+                        aside.delete();
+                        throw new IOException("Rename failed: " + old.getName());
+                    }
+                    undo.add(new File[]{aside, old});
+                }
+                moveFile(s.file, stored);
+                undo.add(new File[]{stored, null});
+                Room.FileEntry entry = new Room.FileEntry(s.name, s.size, stored.lastModified());
+                entry.gz = s.gz;
+                entries.add(entry);
+            }
+        } catch (IOException | RuntimeException e) {
+            // newest first, so old content of names repeated in batch ends up back in place
+            for (int i = undo.size() - 1; i >= 0; i--) {
+                File[] op = undo.get(i);
+                if (op[1] == null) op[0].delete();
+                else op[0].renameTo(op[1]);
+            }
+            throw e;
+        }
+
+        // all content in place, index can no longer fail
+        for (File[] op : undo) if (op[1] != null) op[0].delete();
+        for (Room.FileEntry entry : entries) {
+            room.putFile(entry);
+            room.deleted.remove(entry.name);
+        }
+        return entries;
+    }
+
+    // file entry as in state and page lists
+    private static JSONObject fileJson(Room.FileEntry f) throws JSONException {
+        JSONObject o = new JSONObject();
+        o.put("name", f.name); o.put("size", f.size); o.put("time", f.time);
+        return o;
+    }
+
+    /**
+     * Get named room, opened from disk or created on first write
+     * reads of unknown room see an empty room that is not kept, walking names leaves nothing behind
+     * @return null if name is invalid or room limit is reached
+     */
+    private Room getRoom(String name, boolean create) {
+        if (!Room.isValidName(name)) return null;
+        Room room = rooms.get(name);
+        if (room != null) return room;
+        File dir = new File(roomsDir, name);
+        if (!create && !dir.isDirectory()) return new Room(name, dir);
+
+        synchronized (rooms) {
+            room = rooms.get(name);
+            if (room != null) return room;
+            if (!dir.isDirectory()) {
+                String[] existing = roomsDir.list();
+                if (existing != null && existing.length >= MAX_ROOMS) return null;
+                dir.mkdirs();
+            }
+            room = new Room(name, dir);
+            room.openJournal(journalIo);
+            int count = room.loadExistingFiles();
+            rooms.put(name, room);
+            logToMain("Room opened: " + name + (count > 0 ? " (" + count + " files)" : ""));
+            return room;
         }
     }
 
-    // Load existing files at temp dir
-    private void loadExistingFiles() {
-        File[] files = tempDir.listFiles();
-        if (files != null) {
-            for (File f : files) {
-                if (f.isFile()) filesData.add(new FileEntry(f.getName(), f.length()));
+    // join hub cluster, multicast needs lock or wifi drops group packets
+    private void startFederation(int port) throws IOException {
+        WifiManager wifi = getApplicationContext().getSystemService(WifiManager.class);
+        multicastLock = wifi.createMulticastLock("ConnHub");
+        multicastLock.setReferenceCounted(false);
+        multicastLock.acquire();
+
+        federation = new Federation(port, new Federation.Rooms() {
+            @Override
+            public Collection<Room> all() {
+                List<Room> all = new ArrayList<>();
+                all.add(defaultRoom);
+                all.addAll(rooms.values());
+                return all;
+            }
+            @Override
+            public Room get(String name) {
+                return name.isEmpty() ? defaultRoom : getRoom(name, true);
+            }
+        }, this::logToMain);
+
+        // rooms on disk are advertised too, not only those opened by clients since start
+        File[] dirs = roomsDir.listFiles();
+        if (dirs != null) for (File d : dirs) if (d.isDirectory()) getRoom(d.getName(), true);
+        federation.start();
+        logToMain("Federation node " + federation.nodeId);
+    }
+
+    // flush and close text journals of all open rooms
+    private void closeJournals() {
+        if (defaultRoom != null) defaultRoom.closeJournal();
+        for (Room r : rooms.values()) r.closeJournal();
+    }
+
+    // announce local change to peers
+    private void notifyPeers() {
+        if (federation != null) federation.changed();
+    }
+
+    // content of peer file as stream, fetched to disk by bulk worker and then copied
+    private InputStream peerStream(Room room, String encodedName) {
+        HubHttp.Pipe pipe = new HubHttp.Pipe(65536);
+        bulkIo.execute(() -> {
+            try (InputStream in = new FileInputStream(fetchFromPeer(room, encodedName))) {
+                OutputStream out = pipe.sink();
+                byte[] buf = new byte[65536];
+                int len;
+                while ((len = in.read(buf)) > 0) out.write(buf, 0, len);
+                out.close();
+            } catch (IOException | RuntimeException e) {
+                pipe.fail(e);
+            }
+        });
+        return pipe;
+    }
+
+    // copy content of peer file here on first use, stored file is returned either way
+    private File fetchFromPeer(Room room, String encodedName) throws IOException {
+        File file = new File(room.dir, encodedName);
+        if (federation == null) return file;
+        String key = room.name + "/" + encodedName;
+        Object lock = fetchLocks.computeIfAbsent(key, k -> new Object());
+        synchronized (lock) {
+            try {
+                String holder;
+                long time;
+                synchronized (room.filesLock) {
+                    Room.FileEntry entry = room.findFile(encodedName);
+                    if (entry == null || entry.peer == null) return file;
+                    holder = entry.peer;
+                    time = entry.time;
+                }
+
+                InputStream in = federation.fetch(room, encodedName, holder);
+                if (in == null) return file;
+                if (!spoolDir.exists()) spoolDir.mkdirs();
+                File tmp = File.createTempFile("peer", ".tmp", spoolDir);
+                try (InputStream src = in; OutputStream out = new FileOutputStream(tmp)) {
+                    byte[] buf = new byte[65536];
+                    int len;
+                    while ((len = src.read(buf)) > 0) out.write(buf, 0, len);
+                } catch (IOException e) {
+                    tmp.delete();
+                    throw e;
+                }
+                tmp.setLastModified(time);
+
+                // entry may be replaced or deleted while fetching
+                synchronized (room.filesLock) {
+                    Room.FileEntry entry = room.findFile(encodedName);
+                    if (entry == null || entry.time != time) {
+                        tmp.delete();
+                        return file;
+                    }
+                    moveFile(tmp, file);
+                    entry.peer = null;
+                }
+                logToMain(room.tag() + "Fetched from peer: " + encodedName);
+                return file;
+            } finally {
+                fetchLocks.remove(key);
             }
-            logToMain("Loaded " + filesData.size() + " existing files");
         }
     }
 
+    // rename, copy if rename failed
+    private static void moveFile(File src, File dst) throws IOException {
+        if (src.renameTo(dst)) return;
+        try (InputStream in = new FileInputStream(src); OutputStream out = new FileOutputStream(dst)) {
+            byte[] buf = new byte[65536];
+            int len;
+            while ((len = in.read(buf)) > 0) out.write(buf, 0, len);
+        }
+        src.delete();
+    }
+
     // get IP address
     private void broadcastIps(int port, boolean showIpv6) {
         StringBuilder ips = new StringBuilder();
@@ -349,6 +862,22 @@ public class ConnHubService extends Service {
         SVCC1.getChan().SetString(0, msg);
     }
 
+    // foreground notification, shows transfer lock state when enabled
+    private Notification buildNotification() {
+        String text = "HTTP Server is running...";
+        if (transferLocks != null) text += transferLocks.isHeld() ? " Wi-Fi lock held" : " Wi-Fi lock idle";
+        return new NotificationCompat.Builder(this, "ConnHub")
+                .setContentTitle("ConnHub Server")
+                .setContentText(text)
+                .setSmallIcon(R.drawable.icon_service)
+                .setOnlyAlertOnce(true)
+                .build();
+    }
+
+    private void updateNotification() {
+        getSystemService(NotificationManager.class).notify(1, buildNotification());
+    }
+
     // register service
     private void createNotificationChannel() {
         NotificationChannel channel = new NotificationChannel(
@@ -365,6 +894,19 @@ public class ConnHubService extends Service {
     @Override
     public void onDestroy() {
         if (server != null) server.stop();
+        if (federation != null) federation.stop();
+        if (transferLocks != null) transferLocks.shutdown();
+        if (multicastLock != null) multicastLock.release();
+        if (thumbCache != null) thumbCache.shutdown();
+        if (folderShare != null) folderShare.shutdown();
+        if (bulkIo != null) bulkIo.shutdownNow();
+        if (journalIo != null) {
+            closeJournals();
+            journalIo.shutdown(); // pending text writes still run
+            try {
+                journalIo.awaitTermination(3, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {}
+        }
         logToMain("Server stopped.");
         SVCC1.getChan().SetString(1, "");
         super.onDestroy();
@@ -0,0 +1,381 @@
+package com.example.k7connhub;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Hub cluster on LAN, peers found by multicast beacon, state pulled over HTTP when peer version changes
+// text and file entries are merged last writer wins, file content is fetched from holder on first download
+public class Federation {
+    public static final String PEER_HEADER = "x-connhub-peer"; // set on requests between hubs
+    public static final String STATE_PATH = "/api/fed/state";
+    private static final String GROUP = "239.255.42.99";
+    private static final int DISCOVERY_PORT = 45454;
+    private static final long BEACON_INTERVAL = 2000;
+    private static final long PEER_TIMEOUT = 10000; // missed beacons before peer is dropped
+
+    // Room access of local hub
+    public interface Rooms {
+        Collection<Room> all();
+        Room get(String name); // created if missing, null if invalid
+    }
+
+    // Known hub
+    private static class Peer {
+        final String id;
+        volatile String base; // http://addr:port
+        volatile long lastSeen;
+        long version; // latest announced
+        long pulled = -1; // version merged here
+        boolean pulling;
+        final Map<String, long[]> seen = new HashMap<>(); // room -> text and files version merged, pulling thread only
+        Peer(String id) { this.id = id; }
+    }
+
+    public final String nodeId;
+    private final int httpPort;
+    private final InetAddress group;
+    private final int discoveryPort;
+    private final NetworkInterface nif; // null for default route
+    private final Rooms rooms;
+    private final Consumer<String> log;
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private final ExecutorService puller = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "ConnHub-fed");
+        t.setDaemon(true);
+        return t;
+    });
+    private MulticastSocket socket;
+    private Thread receiver, beacon;
+    private volatile boolean running;
+
+    public Federation(int httpPort, Rooms rooms, Consumer<String> log) throws IOException {
+        this(Long.toHexString(new SecureRandom().nextLong()), httpPort, InetAddress.getByName(GROUP), DISCOVERY_PORT, null, rooms, log);
+    }
+
+    /**
+     * @param discoveryPort shared by all hubs of cluster, hubs on one host use same port with address reuse
+     * @param nif multicast interface, loopback for local test clusters
+     */
+    public Federation(String nodeId, int httpPort, InetAddress group, int discoveryPort, NetworkInterface nif, Rooms rooms, Consumer<String> log) {
+        this.nodeId = nodeId;
+        this.httpPort = httpPort;
+        this.group = group;
+        this.discoveryPort = discoveryPort;
+        this.nif = nif;
+        this.rooms = rooms;
+        this.log = log;
+    }
+
+    @SuppressWarnings("deprecation")
+    public void start() throws IOException {
+        socket = new MulticastSocket(null);
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(discoveryPort));
+        if (nif != null) socket.setNetworkInterface(nif);
+        socket.setLoopbackMode(false); // false enables loopback, hubs on same host see each other
+        socket.setTimeToLive(1);
+        socket.joinGroup(group);
+        running = true;
+
+        receiver = new Thread(this::receive, "ConnHub-fed-rx");
+        receiver.setDaemon(true);
+        receiver.start();
+        beacon = new Thread(() -> {
+            while (running) {
+                sendBeacon();
+                expirePeers();
+                try {
+                    Thread.sleep(BEACON_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "ConnHub-fed-tx");
+        beacon.setDaemon(true);
+        beacon.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (socket != null) socket.close();
+        if (beacon != null) beacon.interrupt();
+        puller.shutdownNow();
+    }
+
+    public int peerCount() {
+        return peers.size();
+    }
+
+    // local change, announce at once so peers pull soon
+    public void changed() {
+        version.incrementAndGet();
+        if (running) sendBeacon();
+    }
+
+    // beacon: CONNHUB1 <node> <http port> <version>
+    private void sendBeacon() {
+        byte[] msg = ("CONNHUB1 " + nodeId + " " + httpPort + " " + version.get()).getBytes(StandardCharsets.UTF_8);
+        try {
+            socket.send(new DatagramPacket(msg, msg.length, group, discoveryPort));
+        } catch (IOException ignored) {} // no network yet, next beacon retries
+    }
+
+    private void receive() {
+        byte[] buf = new byte[512];
+        while (running) {
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                if (running) continue;
+                return;
+            }
+            String[] f = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8).split(" ");
+            if (f.length != 4 || !f[0].equals("CONNHUB1") || f[1].equals(nodeId)) continue;
+            try {
+                String host = packet.getAddress().getHostAddress();
+                if (host.indexOf(':') >= 0) host = "[" + host + "]";
+                onBeacon(f[1], "http://" + host + ":" + Integer.parseInt(f[2]), Long.parseLong(f[3]));
+            } catch (NumberFormatException ignored) {}
+        }
+    }
+
+    private void onBeacon(String id, String base, long peerVersion) {
+        Peer peer = peers.get(id);
+        boolean joined = peer == null;
+        if (joined) peer = new Peer(id);
+        peer.base = base;
+        peer.lastSeen = System.currentTimeMillis();
+        if (joined) {
+            peers.put(id, peer); // after lastSeen, or expiry may drop it at once
+            log.accept("Peer joined: " + base);
+        }
+        synchronized (peer) {
+            peer.version = peerVersion;
+            if (peer.pulling || peer.pulled == peerVersion) return;
+            peer.pulling = true;
+        }
+        Peer p = peer;
+        puller.execute(() -> pull(p));
+    }
+
+    private void expirePeers() {
+        long now = System.currentTimeMillis();
+        Iterator<Peer> it = peers.values().iterator();
+        while (it.hasNext()) {
+            Peer p = it.next();
+            if (now - p.lastSeen > PEER_TIMEOUT) {
+                it.remove();
+                log.accept("Peer left: " + p.base);
+            }
+        }
+    }
+
+    // pull until merged version is latest announced
+    private void pull(Peer peer) {
+        while (running) {
+            long target;
+            synchronized (peer) {
+                target = peer.version;
+            }
+            try {
+                HttpURLConnection c = open(peer.base + STATE_PATH + "?since=" + since(peer.seen));
+                Map<String, long[]> merged = new HashMap<>();
+                try (InputStream in = c.getInputStream()) {
+                    merge(in, merged);
+                }
+                peer.seen.putAll(merged); // only after whole state, failed pull asks again from last view
+            } catch (IOException e) {
+                log.accept("Peer sync failed: " + peer.base + " " + e.getMessage());
+                synchronized (peer) {
+                    peer.pulling = false; // retried on next beacon
+                }
+                return;
+            }
+            synchronized (peer) {
+                peer.pulled = target;
+                if (peer.version == target) {
+                    peer.pulling = false;
+                    return;
+                }
+            }
+        }
+    }
+
+    // room:textTs:filesTs per room, default room has empty name
+    private static String since(Map<String, long[]> seen) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, long[]> e : seen.entrySet()) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(e.getKey()).append(':').append(e.getValue()[0]).append(':').append(e.getValue()[1]);
+        }
+        return sb.toString();
+    }
+
+    private static Map<String, long[]> parseSince(String since) {
+        Map<String, long[]> seen = new HashMap<>();
+        if (since == null) return seen;
+        for (String item : since.split(",")) {
+            String[] f = item.split(":", -1);
+            if (f.length != 3) continue; // unknown room is sent whole
+            try {
+                seen.put(f[0], new long[]{Long.parseLong(f[1]), Long.parseLong(f[2])});
+            } catch (NumberFormatException ignored) {}
+        }
+        return seen;
+    }
+
+    /**
+     * State of rooms changed since versions peer has seen, names are base64url so fields never contain spaces
+     * room textTs filesTs [name] / text ts base64 / file name size time holder / gone name time
+     * @param since room:textTs:filesTs list from peer, null sends everything
+     */
+    public String dumpState(String since) {
+        Map<String, long[]> seen = parseSince(since);
+        StringBuilder sb = new StringBuilder();
+        for (Room room : rooms.all()) {
+            long[] known = seen.get(room.name); // null when peer has nothing of room
+            byte[] text;
+            long textTs, filesTs;
+            synchronized (room.textLock) {
+                text = room.textData; // replaced never modified, encoded outside lock
+                textTs = room.textTs;
+            }
+            StringBuilder files = new StringBuilder();
+            synchronized (room.filesLock) {
+                filesTs = room.filesTs;
+                if (known == null || filesTs > known[1]) {
+                    for (Room.FileEntry f : room.filesData.values()) {
+                        if (known != null && f.stamp <= known[1]) continue; // peer has this entry
+                        files.append("file ").append(f.name).append(' ').append(f.size).append(' ').append(f.time)
+                                .append(' ').append(f.peer != null ? f.peer : nodeId).append('\n');
+                    }
+                    for (Map.Entry<String, Long> g : room.deleted.entrySet()) {
+                        files.append("gone ").append(g.getKey()).append(' ').append(g.getValue()).append('\n');
+                    }
+                }
+            }
+            boolean sendText = known == null || textTs > known[0];
+            if (!sendText && filesTs <= known[1]) continue; // room unchanged for this peer
+
+            sb.append("room ").append(textTs).append(' ').append(filesTs);
+            if (!room.name.isEmpty()) sb.append(' ').append(room.name);
+            sb.append('\n');
+            if (sendText) sb.append("text ").append(textTs).append(' ').append(Base64.getEncoder().encodeToString(text)).append('\n');
+            sb.append(files);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Merge peer state into local rooms
+     * @param merged receives peer versions of each room in state
+     */
+    private void merge(InputStream in, Map<String, long[]> merged) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        Room room = null;
+        List<Room.FileEntry> files = new ArrayList<>();
+        Map<String, Long> gone = new HashMap<>();
+        boolean changed = false;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] f = line.split(" ");
+            try {
+                switch (f[0]) {
+                    case "room":
+                        if (room != null) changed |= mergeFiles(room, files, gone);
+                        String name = f.length > 3 ? f[3] : "";
+                        room = rooms.get(name);
+                        if (room != null) merged.put(name, new long[]{Long.parseLong(f[1]), Long.parseLong(f[2])});
+                        files.clear();
+                        gone.clear();
+                        break;
+                    case "text":
+                        if (room == null) break;
+                        byte[] text = f.length > 2 ? Base64.getDecoder().decode(f[2]) : new byte[0];
+                        if (room.mergeText(text, Long.parseLong(f[1]))) {
+                            log.accept(room.tag() + "Text synced from peer");
+                            changed = true;
+                        }
+                        break;
+                    case "file":
+                        if (!Room.isValidFileName(f[1])) break; // names become paths here, peer is not trusted
+                        Room.FileEntry e = new Room.FileEntry(f[1], Long.parseLong(f[2]), Long.parseLong(f[3]));
+                        e.peer = f[4].equals(nodeId) ? null : f[4];
+                        files.add(e);
+                        break;
+                    case "gone":
+                        if (!Room.isValidFileName(f[1])) break;
+                        gone.put(f[1], Long.parseLong(f[2]));
+                        break;
+                }
+            } catch (RuntimeException ex) {
+                throw new IOException("Bad state line: " + f[0]);
+            }
+        }
+        if (room != null) changed |= mergeFiles(room, files, gone);
+        if (changed) version.incrementAndGet(); // next beacon tells other peers
+    }
+
+    private boolean mergeFiles(Room room, List<Room.FileEntry> files, Map<String, Long> gone) {
+        // entry whose holder is this node but missing here was lost, skip it
+        List<Room.FileEntry> valid = new ArrayList<>();
+        for (Room.FileEntry e : files) if (e.peer != null) valid.add(e);
+        boolean changed = room.mergeFiles(valid, gone);
+        if (changed) log.accept(room.tag() + "Files synced from peer");
+        return changed;
+    }
+
+    /**
+     * Open file content on holder, other peers are tried if holder is gone
+     * @return stream of content, null if no peer has it
+     */
+    public InputStream fetch(Room room, String name, String holder) {
+        List<Peer> order = new ArrayList<>();
+        Peer first = peers.get(holder);
+        if (first != null) order.add(first);
+        for (Peer p : peers.values()) if (p != first) order.add(p);
+
+        String path = (room.name.isEmpty() ? "" : "/r/" + room.name) + "/api/files/download/" + name;
+        for (Peer p : order) {
+            try {
+                HttpURLConnection c = open(p.base + path);
+                if (c.getResponseCode() == 200) return c.getInputStream();
+                c.disconnect();
+            } catch (IOException ignored) {}
+        }
+        return null;
+    }
+
+    private HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+        c.setConnectTimeout(5000);
+        c.setReadTimeout(30000);
+        c.setRequestProperty(PEER_HEADER, nodeId);
+        return c;
+    }
+}
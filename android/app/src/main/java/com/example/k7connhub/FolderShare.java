@@ -0,0 +1,279 @@
+package com.example.k7connhub;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Shared folder tree, directories are listed on demand and cached per path
+public class FolderShare {
+    private static final int CACHE_DIRS = 64; // max cached directory listings
+    private static final long CACHE_TTL = 10000; // listing lifetime in ms
+    private static final int ZIP_WORKERS = 2; // concurrent zip walks, later requests wait in queue
+
+    // Directory entry with metadata, read in one listing
+    public static class Entry {
+        public final IO1.VFile file;
+        public final String name;
+        public final boolean isDir;
+        public final long size;
+        public final long modified;
+
+        Entry(IO1.VFile file, String name, boolean isDir, long size, long modified) {
+            this.file = file;
+            this.name = name;
+            this.isDir = isDir;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    // Single directory listing, dirs first then name order
+    public static class Listing {
+        public final List<Entry> entries;
+        final Map<String, Entry> byName;
+        final long loadedAt;
+
+        Listing(List<Entry> entries) {
+            this.entries = entries;
+            this.byName = new HashMap<>();
+            for (Entry e : entries) this.byName.put(e.name, e);
+            this.loadedAt = System.currentTimeMillis();
+        }
+    }
+
+    private final Context context;
+    private final IO1.VFile root;
+    private final ExecutorService zipWorkers;
+    private final Map<String, Listing> cache = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+            return size() > CACHE_DIRS;
+        }
+    };
+
+    public FolderShare(Context context, IO1.VFile root) {
+        this.context = context.getApplicationContext();
+        this.root = root;
+        this.zipWorkers = Executors.newFixedThreadPool(ZIP_WORKERS, r -> {
+            Thread t = new Thread(r, "ConnHub-zip");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void shutdown() {
+        zipWorkers.shutdownNow();
+    }
+
+    public String getName() {
+        return root.GetName(context);
+    }
+
+    /**
+     * Get listing of directory, loaded lazily and cached
+     * @param path '/' separated path relative to shared root, empty means root
+     * @param refresh drop cached listing before reading
+     */
+    public Listing list(String path, boolean refresh) throws IOException {
+        List<String> parts = splitPath(path);
+        IO1.VFile dir = root;
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i <= parts.size(); i++) {
+            Listing listing = cached(key.toString(), dir, refresh && i == parts.size());
+            if (i == parts.size()) return listing;
+
+            // step into child directory
+            Entry child = listing.byName.get(parts.get(i));
+            if (child == null || !child.isDir) throw new FileNotFoundException(path);
+            dir = child.file;
+            if (key.length() > 0) key.append('/');
+            key.append(parts.get(i));
+        }
+        throw new FileNotFoundException(path);
+    }
+
+    // Resolve path to entry, root is not an entry
+    public Entry find(String path) throws IOException {
+        List<String> parts = splitPath(path);
+        if (parts.isEmpty()) throw new FileNotFoundException(path);
+        String parent = String.join("/", parts.subList(0, parts.size() - 1));
+        Entry entry = list(parent, false).byName.get(parts.get(parts.size() - 1));
+        if (entry == null) throw new FileNotFoundException(path);
+        return entry;
+    }
+
+    public InputStream openFile(String path) throws IOException {
+        Entry entry = find(path);
+        if (entry.isDir) throw new FileNotFoundException(path);
+        return entry.file.OpenReader(context);
+    }
+
+    /**
+     * Stream directory subtree as zip, written by zip worker
+     * read error fails the stream, client never gets a truncated archive that looks complete
+     * @param path directory path relative to shared root
+     */
+    public InputStream openZip(String path) throws IOException {
+        List<String> parts = splitPath(path);
+        Entry entry = parts.isEmpty() ? null : find(path);
+        if (entry != null && !entry.isDir) throw new FileNotFoundException(path); // caller answers files with 400
+        IO1.VFile dir = entry == null ? root : entry.file;
+        String top = parts.isEmpty() ? getName() : parts.get(parts.size() - 1);
+        if (top.isEmpty()) top = "folder";
+
+        HubHttp.Pipe pipe = new HubHttp.Pipe(65536);
+        String prefix = top;
+        zipWorkers.execute(() -> {
+            try {
+                ZipOutputStream zos = new ZipOutputStream(pipe.sink());
+                writeTree(zos, dir, prefix);
+                zos.close(); // central directory only after whole tree was read
+            } catch (IOException | RuntimeException e) {
+                pipe.fail(e); // also ends walk when client closed connection
+            }
+        });
+        return pipe;
+    }
+
+    // depth first walk, only pending directories are kept in memory
+    private void writeTree(ZipOutputStream zos, IO1.VFile dir, String prefix) throws IOException {
+        Deque<Entry> stack = new ArrayDeque<>();
+        Deque<String> names = new ArrayDeque<>();
+        stack.push(new Entry(dir, prefix, true, 0, 0));
+        names.push(prefix);
+        byte[] buf = new byte[65536];
+
+        while (!stack.isEmpty()) {
+            Entry current = stack.pop();
+            String base = names.pop();
+            zos.putNextEntry(new ZipEntry(base + "/"));
+            zos.closeEntry();
+
+            for (Entry e : listDir(current.file)) {
+                if (e.name.isEmpty() || e.name.equals(".") || e.name.equals("..")) continue;
+                String entryName = base + "/" + e.name;
+                if (e.isDir) {
+                    stack.push(e);
+                    names.push(entryName);
+                    continue;
+                }
+
+                // put file to zip, opened first so file removed while walking leaves no empty entry
+                InputStream is;
+                try {
+                    is = e.file.OpenReader(context);
+                } catch (FileNotFoundException ignored) {
+                    continue;
+                }
+                if (is == null) continue;
+                try (InputStream in = is) {
+                    ZipEntry ze = new ZipEntry(entryName);
+                    if (e.modified > 0) ze.setTime(e.modified);
+                    zos.putNextEntry(ze);
+                    int len;
+                    while ((len = in.read(buf)) > 0) zos.write(buf, 0, len);
+                    zos.closeEntry();
+                }
+            }
+        }
+    }
+
+    private Listing cached(String key, IO1.VFile dir, boolean refresh) throws IOException {
+        synchronized (cache) {
+            Listing listing = refresh ? null : cache.get(key);
+            if (listing != null && System.currentTimeMillis() - listing.loadedAt < CACHE_TTL) return listing;
+            cache.remove(key);
+        }
+
+        // read outside lock, large directories can take a while
+        List<Entry> entries = listDir(dir);
+        Collections.sort(entries, (a, b) -> {
+            if (a.isDir != b.isDir) return a.isDir ? -1 : 1;
+            return a.name.compareToIgnoreCase(b.name);
+        });
+        Listing listing = new Listing(Collections.unmodifiableList(entries));
+        synchronized (cache) {
+            cache.put(key, listing);
+        }
+        return listing;
+    }
+
+    /**
+     * Children of directory with metadata, one query for SAF trees instead of lookups per child
+     * lost permission is thrown as SecurityException, never shown as empty folder
+     */
+    private List<Entry> listDir(IO1.VFile dir) throws IOException {
+        Uri uri = dir.GetUri();
+        List<Entry> result = new ArrayList<>();
+
+        // File type
+        if ("file".equals(uri.getScheme())) {
+            File[] children = new File(uri.getPath()).listFiles();
+            if (children == null) throw new FileNotFoundException(uri.getPath());
+            for (File child : children) {
+                boolean isDir = child.isDirectory();
+                result.add(new Entry(new IO1.VFile(child), child.getName(), isDir, isDir ? 0 : child.length(), child.lastModified()));
+            }
+            return result;
+        }
+
+        // Tree uri type
+        String[] columns = {
+                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+                DocumentsContract.Document.COLUMN_MIME_TYPE,
+                DocumentsContract.Document.COLUMN_SIZE,
+                DocumentsContract.Document.COLUMN_LAST_MODIFIED
+        };
+        String docId = DocumentsContract.isDocumentUri(context, uri) ? DocumentsContract.getDocumentId(uri) : DocumentsContract.getTreeDocumentId(uri);
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(uri, docId);
+        Cursor c;
+        try {
+            c = context.getContentResolver().query(childrenUri, columns, null, null, null);
+        } catch (IllegalArgumentException | UnsupportedOperationException e) {
+            throw new FileNotFoundException(uri.toString()); // provider has no such directory
+        }
+        if (c == null) throw new FileNotFoundException(uri.toString());
+        try (Cursor cursor = c) {
+            while (cursor.moveToNext()) {
+                boolean isDir = DocumentsContract.Document.MIME_TYPE_DIR.equals(cursor.getString(2));
+                Uri childUri = DocumentsContract.buildDocumentUriUsingTree(uri, cursor.getString(0));
+                String name = cursor.getString(1) != null ? cursor.getString(1) : "";
+                long size = (isDir || cursor.isNull(3)) ? 0 : cursor.getLong(3);
+                long modified = cursor.isNull(4) ? 0 : cursor.getLong(4);
+                result.add(new Entry(new IO1.VFile(childUri, isDir), name, isDir, size, modified));
+            }
+        }
+        return result;
+    }
+
+    // split and check path, prevent ../ access
+    private static List<String> splitPath(String path) throws FileNotFoundException {
+        List<String> parts = new ArrayList<>();
+        if (path == null) return parts;
+        for (String p : path.split("/")) {
+            if (p.isEmpty()) continue;
+            if (p.equals(".") || p.equals("..")) throw new FileNotFoundException(path);
+            parts.add(p);
+        }
+        return parts;
+    }
+}
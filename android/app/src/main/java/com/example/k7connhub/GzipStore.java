@@ -0,0 +1,105 @@
+package com.example.k7connhub;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+// Compressed storage of uploads, compressible files are kept as name.gz and sent as is with Content-Encoding
+public class GzipStore {
+    public static final String SUFFIX = ".gz"; // stored names are checked base64url, never contain '.'
+    private static final int MIN_SIZE = 4096; // small files are not worth it
+    private static final int SAMPLE = 65536;
+    private static final double SAMPLE_RATIO = 0.7; // compress if sample shrinks below
+    private static final double KEEP_RATIO = 0.9; // keep gzip only if whole file shrinks below
+
+    /**
+     * Compress file if content is compressible, checked on a sample first
+     * @return gzip file in dir, null if file is kept raw
+     */
+    public static File compress(File src, File dir) throws IOException {
+        long size = src.length();
+        if (size < MIN_SIZE || !sampleCompresses(src)) return null;
+
+        File gz = File.createTempFile("gzip", ".tmp", dir);
+        try (InputStream in = new FileInputStream(src);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(gz), 65536)) {
+            byte[] buf = new byte[65536];
+            int len;
+            while ((len = in.read(buf)) > 0) out.write(buf, 0, len);
+        } catch (IOException e) {
+            gz.delete();
+            throw e;
+        }
+        if (gz.length() > size * KEEP_RATIO) {
+            gz.delete();
+            return null;
+        }
+        return gz;
+    }
+
+    // fast deflate of first block, already compressed media stays near 100%
+    private static boolean sampleCompresses(File src) throws IOException {
+        byte[] sample = new byte[SAMPLE];
+        int n = 0;
+        try (InputStream in = new FileInputStream(src)) {
+            int len;
+            while (n < SAMPLE && (len = in.read(sample, n, SAMPLE - n)) > 0) n += len;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, n);
+            deflater.finish();
+            byte[] out = new byte[SAMPLE];
+            long total = 0;
+            while (!deflater.finished()) {
+                total += deflater.deflate(out);
+                if (total > n * SAMPLE_RATIO) return false;
+            }
+            return true;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // logical size from gzip trailer, modulo 4GiB
+    public static long logicalSize(File gz) {
+        try (RandomAccessFile raf = new RandomAccessFile(gz, "r")) {
+            if (raf.length() < 18) return 0;
+            raf.seek(raf.length() - 4);
+            byte[] b = new byte[4];
+            raf.readFully(b);
+            return (b[0] & 0xffL) | (b[1] & 0xffL) << 8 | (b[2] & 0xffL) << 16 | (b[3] & 0xffL) << 24;
+        } catch (IOException e) {
+            return gz.length();
+        }
+    }
+
+    // client takes gzip body, explicit gzip q wins over "*"
+    public static boolean accepts(String acceptEncoding) {
+        if (acceptEncoding == null) return false;
+        double gzip = -1, any = -1;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.trim().split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String p = parts[i].trim();
+                if (p.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(p.substring(2));
+                    } catch (NumberFormatException ignored) {}
+                }
+            }
+            if (coding.equals("gzip")) gzip = q;
+            else if (coding.equals("*")) any = q;
+        }
+        return gzip >= 0 ? gzip > 0 : any > 0;
+    }
+}
@@ -0,0 +1,534 @@
+package com.example.k7connhub;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Engine independent HTTP types, routes are written once and served by NanoHTTPD or NIO engine
+public class HubHttp {
+
+    // Route handler, called from engine worker threads
+    public interface Handler {
+        Response handle(Request req);
+
+        // route may wait on slow storage, engines with a small handler pool run it on blocking threads
+        default boolean blocks(Request req) {
+            return false;
+        }
+    }
+
+    // Server engine, created with port and handler
+    public interface Engine {
+        void start() throws IOException;
+        void stop();
+    }
+
+    // Paced body stream, engines without thread per socket wait outside of read
+    public interface Paced {
+        long delayNanos();
+        void setBlocking(boolean blocking);
+    }
+
+    // Parsed request, body is limited to Content-Length
+    public static class Request {
+        public final String method;
+        public final String uri;
+        public final Map<String, String> headers; // lower case keys
+        public final Map<String, List<String>> params; // decoded query parameters
+        public final String remoteIp;
+        public final InputStream body;
+        public final long contentLength;
+
+        public Request(String method, String uri, Map<String, String> headers, Map<String, List<String>> params,
+                       String remoteIp, InputStream body, long contentLength) {
+            this.method = method;
+            this.uri = uri;
+            this.headers = headers;
+            this.params = params;
+            this.remoteIp = remoteIp;
+            this.body = body;
+            this.contentLength = contentLength;
+        }
+
+        // same request with wrapped body
+        public Request withBody(InputStream newBody) {
+            return new Request(method, uri, headers, params, remoteIp, newBody, contentLength);
+        }
+
+        // get first query parameter or default
+        public String param(String key, String def) {
+            List<String> values = params.get(key);
+            return (values == null || values.isEmpty() || values.get(0) == null) ? def : values.get(0);
+        }
+        public String header(String key) {
+            return headers.get(key.toLowerCase(Locale.ROOT));
+        }
+
+        // read whole body, exact size array when length is known
+        public byte[] bodyBytes(int maxBytes) throws IOException {
+            if (contentLength > maxBytes) throw new IOException("Body too large");
+            if (contentLength > 0) {
+                byte[] data = new byte[(int) contentLength];
+                int off = 0;
+                while (off < data.length) {
+                    int n = body.read(data, off, data.length - off);
+                    if (n < 0) throw new EOFException("Body shorter than Content-Length");
+                    off += n;
+                }
+                return data;
+            }
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(contentLength > 0 ? (int) contentLength : 256);
+            byte[] chunk = new byte[8192];
+            int len;
+            while ((len = body.read(chunk)) > 0) {
+                if (buf.size() + len > maxBytes) throw new IOException("Body too large");
+                buf.write(chunk, 0, len);
+            }
+            return buf.toByteArray();
+        }
+
+        // read whole body as UTF-8 text, limited size
+        public String bodyText(int maxBytes) throws IOException {
+            return new String(bodyBytes(maxBytes), StandardCharsets.UTF_8);
+        }
+    }
+
+    // Response, negative length means chunked transfer
+    public static class Response {
+        public final int status;
+        public final String mime;
+        public final InputStream body;
+        public final long length;
+        public final Map<String, String> headers = new LinkedHashMap<>();
+
+        public Response(int status, String mime, InputStream body, long length) {
+            this.status = status;
+            this.mime = mime;
+            this.body = body != null ? body : new ByteArrayInputStream(new byte[0]);
+            this.length = body != null ? length : 0;
+        }
+
+        public Response header(String key, String value) {
+            headers.put(key, value);
+            return this;
+        }
+
+        public static Response bytes(int status, String mime, byte[] data) {
+            return new Response(status, mime, new ByteArrayInputStream(data), data.length);
+        }
+        public static Response text(int status, String msg) {
+            return bytes(status, "text/plain", msg.getBytes(StandardCharsets.UTF_8));
+        }
+        public static Response json(String json) {
+            return bytes(200, "application/json; charset=utf-8", json.getBytes(StandardCharsets.UTF_8));
+        }
+        public static Response stream(int status, String mime, InputStream body) {
+            return new Response(status, mime, body, -1);
+        }
+    }
+
+    // Body written by background worker, writer failure reaches reader as IOException instead of early EOF
+    // paced while empty, so engines without thread per socket poll it instead of blocking in read
+    public static class Pipe extends InputStream implements Paced {
+        private static final long POLL_NANOS = 20000000; // retry empty pipe after
+        private final byte[] buf;
+        private int head = 0, count = 0;
+        private boolean finished = false, closed = false;
+        private IOException error;
+        private final OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                put(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                finish();
+            }
+        };
+
+        public Pipe(int size) {
+            buf = new byte[size];
+        }
+
+        // writer side, blocks while buffer is full, close ends body
+        public OutputStream sink() {
+            return sink;
+        }
+
+        @Override
+        public synchronized long delayNanos() {
+            return count == 0 && error == null && !finished ? POLL_NANOS : 0;
+        }
+
+        @Override
+        public void setBlocking(boolean blocking) {} // read waits only while empty, paced readers never see that
+
+        // writer failed, reader throws instead of seeing a truncated body
+        public synchronized void fail(Exception e) {
+            error = e instanceof IOException ? (IOException) e : new IOException(e);
+            notifyAll();
+        }
+
+        private synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+
+        private synchronized void put(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (count == buf.length && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (closed) throw new IOException("Pipe closed"); // reader gone, stop writer
+                int tail = (head + count) % buf.length;
+                int n = Math.min(len, Math.min(buf.length - count, buf.length - tail));
+                System.arraycopy(b, off, buf, tail, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (count == 0 && error == null && !finished) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (error != null) throw error;
+            if (count == 0) return -1;
+            int n = Math.min(len, Math.min(count, buf.length - head));
+            System.arraycopy(buf, head, b, off, n);
+            head = (head + n) % buf.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return count;
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    // Form part, file parts are spooled to disk
+    public static class Part {
+        public final String name;
+        public final String filename;
+        public final File file; // null for plain field
+        public final String value; // null for file part
+
+        Part(String name, String filename, File file, String value) {
+            this.name = name;
+            this.filename = filename;
+            this.file = file;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Parse multipart/form-data body in one pass
+     * @param spoolDir directory for file parts, same filesystem as destination allows rename
+     */
+    public static List<Part> parseMultipart(Request req, File spoolDir) throws IOException {
+        String type = req.header("content-type");
+        String boundary = type == null ? null : headerAttr(type, "boundary");
+        if (boundary == null) throw new IOException("Missing multipart boundary");
+        if (!spoolDir.exists()) spoolDir.mkdirs();
+
+        List<Part> parts = new ArrayList<>();
+        MultipartReader reader = new MultipartReader(req.body, boundary);
+        try {
+            if (!reader.skipPreamble()) return parts;
+            while (true) {
+                // part headers
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while (!(line = reader.readLine()).isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+                }
+                String disposition = headers.get("content-disposition");
+                String name = disposition == null ? null : headerAttr(disposition, "name");
+                String filename = disposition == null ? null : headerAttr(disposition, "filename");
+
+                // part data
+                if (filename != null) {
+                    File file = File.createTempFile("part", ".tmp", spoolDir);
+                    try (OutputStream out = new FileOutputStream(file)) {
+                        reader.readData(out, Long.MAX_VALUE);
+                    } catch (IOException e) {
+                        file.delete();
+                        throw e;
+                    }
+                    parts.add(new Part(name, filename, file, null));
+                } else {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    reader.readData(out, 1048576); // 1MiB max field
+                    parts.add(new Part(name, null, null, out.toString("UTF-8")));
+                }
+                if (reader.isLast()) break;
+            }
+        } catch (IOException e) {
+            deleteParts(parts);
+            throw e;
+        }
+        return parts;
+    }
+
+    // remove spooled files not moved by handler
+    public static void deleteParts(List<Part> parts) {
+        for (Part p : parts) if (p.file != null && p.file.exists()) p.file.delete();
+    }
+
+    // decode query string to parameter map
+    public static Map<String, List<String>> parseQuery(String query) {
+        Map<String, List<String>> params = new HashMap<>();
+        if (query == null || query.isEmpty()) return params;
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) continue;
+            int eq = pair.indexOf('=');
+            String key = decode(eq < 0 ? pair : pair.substring(0, eq));
+            String value = eq < 0 ? "" : decode(pair.substring(eq + 1));
+            List<String> values = params.get(key);
+            if (values == null) params.put(key, values = new ArrayList<>());
+            values.add(value);
+        }
+        return params;
+    }
+
+    public static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (Exception e) {
+            return s;
+        }
+    }
+
+    public static String statusText(int status) {
+        switch (status) {
+            case 100: return "Continue";
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 409: return "Conflict";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 429: return "Too Many Requests";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status " + status;
+        }
+    }
+
+    // read attribute of header value, like boundary=xxx or name="xxx"
+    static String headerAttr(String header, String attr) {
+        for (String item : header.split(";")) {
+            item = item.trim();
+            int eq = item.indexOf('=');
+            if (eq < 0 || !item.substring(0, eq).trim().equalsIgnoreCase(attr)) continue;
+            String value = item.substring(eq + 1).trim();
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) value = value.substring(1, value.length() - 1);
+            return value;
+        }
+        return null;
+    }
+
+    // Limits stream to request body length, so keep-alive requests are not consumed
+    public static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        public BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = Math.max(0, length);
+        }
+
+        public long remaining() {
+            return remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {} // connection stream is owned by engine
+    }
+
+    // Streaming multipart reader, data is copied until "\r\n--boundary" without buffering whole parts
+    private static class MultipartReader {
+        private final InputStream in;
+        private final byte[] delimiter;
+        private final byte[] buf = new byte[65536];
+        private int start = 0, end = 0;
+        private boolean eof = false, last = false;
+
+        MultipartReader(InputStream in, String boundary) {
+            this.in = in;
+            this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            // first boundary has no leading CRLF, prefix one so every delimiter looks the same
+            buf[end++] = '\r';
+            buf[end++] = '\n';
+        }
+
+        boolean isLast() {
+            return last;
+        }
+
+        // skip to first boundary, false if body has no parts
+        boolean skipPreamble() throws IOException {
+            readData(null, Long.MAX_VALUE);
+            return !last;
+        }
+
+        // copy data until next delimiter, then check for closing "--"
+        void readData(OutputStream out, long maxBytes) throws IOException {
+            long written = 0;
+            while (true) {
+                fill(delimiter.length + 2);
+                int idx = indexOf(delimiter);
+                int safe = idx >= 0 ? idx : Math.max(start, end - delimiter.length + 1);
+                if (safe > start) {
+                    written += safe - start;
+                    if (written > maxBytes) throw new IOException("Form field too large");
+                    if (out != null) out.write(buf, start, safe - start);
+                    start = safe;
+                }
+                if (idx >= 0) {
+                    start += delimiter.length;
+                    break;
+                }
+                if (eof) throw new IOException("Malformed multipart body");
+            }
+
+            // "--" closes body, otherwise CRLF starts next part
+            fill(2);
+            if (end - start >= 2 && buf[start] == '-' && buf[start + 1] == '-') {
+                last = true;
+                start += 2;
+            }
+            readLine(); // rest of delimiter line
+        }
+
+        String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (start >= end) {
+                    fill(1);
+                    if (start >= end) return sb.toString();
+                }
+                byte b = buf[start++];
+                if (b == '\n') break;
+                if (b != '\r') sb.append((char) (b & 0xff));
+                if (sb.length() > 8192) throw new IOException("Header line too long");
+            }
+            // headers are UTF-8 in browsers
+            return new String(sb.toString().getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+        }
+
+        // keep at least min bytes buffered unless stream ended
+        private void fill(int min) throws IOException {
+            if (end - start >= min || eof) return;
+            if (start > 0) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            while (end - start < min && !eof) {
+                int n = in.read(buf, end, buf.length - end);
+                if (n < 0) eof = true;
+                else end += n;
+            }
+            // opportunistic fill, fewer delimiter scans on large parts
+            if (!eof && end < buf.length && in.available() > 0) {
+                int n = in.read(buf, end, Math.min(in.available(), buf.length - end));
+                if (n < 0) eof = true;
+                else end += n;
+            }
+        }
+
+        private int indexOf(byte[] pattern) {
+            int limit = end - pattern.length;
+            outer:
+            for (int i = start; i <= limit; i++) {
+                if (buf[i] != pattern[0]) continue;
+                for (int j = 1; j < pattern.length; j++) if (buf[i + j] != pattern[j]) continue outer;
+                return i;
+            }
+            return -1;
+        }
+    }
+}
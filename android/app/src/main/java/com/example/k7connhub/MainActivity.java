@@ -12,6 +12,8 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
@@ -26,13 +28,15 @@ public class MainActivity extends AppCompatActivity {
     // UI component
     private TextView logView;
     private RecyclerView ipList;
-    private EditText portInput;
-    private CheckBox checkDel, checkIpv6;
+    private EditText portInput, rateTotalInput, rateClientInput, textLimitInput;
+    private CheckBox checkDel, checkIpv6, checkFolder, checkNio, checkFed, checkLock;
     private Button startBtn;
 
     // Runner variables
     private boolean isRunning = false;
     private ItemAdapter ipAdapter;
+    private IO1.VFile sharedFolder;
+    private ActivityResultLauncher<Intent> folderPicker;
     private final SVCC1 bus = SVCC1.getChan();
 
     @Override
@@ -44,8 +48,15 @@ public class MainActivity extends AppCompatActivity {
         logView = findViewById(R.id.log_view);
         ipList = findViewById(R.id.ip_list);
         portInput = findViewById(R.id.port_input);
+        rateTotalInput = findViewById(R.id.rate_total);
+        rateClientInput = findViewById(R.id.rate_client);
+        textLimitInput = findViewById(R.id.text_limit);
         checkDel = findViewById(R.id.check_del);
         checkIpv6 = findViewById(R.id.check_ipv6);
+        checkFolder = findViewById(R.id.check_folder);
+        checkNio = findViewById(R.id.check_nio);
+        checkFed = findViewById(R.id.check_fed);
+        checkLock = findViewById(R.id.check_lock);
         startBtn = findViewById(R.id.start_btn);
 
         // RecyclerView/ItemAdapter Setup
@@ -70,6 +81,25 @@ public class MainActivity extends AppCompatActivity {
             ActivityCompat.requestPermissions(this, new String[]{android.Manifest.permission.POST_NOTIFICATIONS}, 1);
         }
 
+        // Shared Folder Selection
+        folderPicker = registerForActivityResult(new ActivityResultContracts.StartActivityForResult(), result -> {
+            sharedFolder = result.getResultCode() == RESULT_OK ? IO1.HandleSelectedFolder(result.getData()) : null;
+            if (sharedFolder != null) {
+                // keep read access for service
+                getContentResolver().takePersistableUriPermission(sharedFolder.GetUri(), Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                checkFolder.setText("Folder: " + sharedFolder.GetName(this));
+            }
+            checkFolder.setChecked(sharedFolder != null);
+        });
+        checkFolder.setOnClickListener(v -> {
+            if (checkFolder.isChecked()) {
+                IO1.SelectFolder(folderPicker);
+            } else {
+                sharedFolder = null;
+                checkFolder.setText("Share Folder");
+            }
+        });
+
         // Server Toggle
         startBtn.setOnClickListener(v -> {
             Intent intent = new Intent(this, ConnHubService.class);
@@ -81,11 +111,23 @@ public class MainActivity extends AppCompatActivity {
             } else {
                 int port = 8000;
                 try { port = Integer.parseInt(portInput.getText().toString()); } catch (Exception ignored) {}
+                long rateTotal = 0, rateClient = 0; // KB/s, empty is unlimited
+                try { rateTotal = Long.parseLong(rateTotalInput.getText().toString()); } catch (Exception ignored) {}
+                try { rateClient = Long.parseLong(rateClientInput.getText().toString()); } catch (Exception ignored) {}
+                int textLimit = 10; // MB, empty is default
+                try { textLimit = Math.max(1, Math.min(100, Integer.parseInt(textLimitInput.getText().toString()))); } catch (Exception ignored) {}
 
                 // put parameters
                 intent.putExtra("port", port);
                 intent.putExtra("delFiles", checkDel.isChecked());
                 intent.putExtra("showIpv6", checkIpv6.isChecked());
+                intent.putExtra("useNio", checkNio.isChecked());
+                intent.putExtra("federate", checkFed.isChecked());
+                intent.putExtra("transferLock", checkLock.isChecked());
+                intent.putExtra("rateTotal", rateTotal * 1024);
+                intent.putExtra("rateClient", rateClient * 1024);
+                intent.putExtra("textLimit", textLimit * 1048576);
+                if (sharedFolder != null) intent.putExtra("shareDir", sharedFolder);
                 startForegroundService(intent);
 
                 startBtn.setText("STOP");
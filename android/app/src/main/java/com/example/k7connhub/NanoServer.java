@@ -0,0 +1,58 @@
+package com.example.k7connhub;
+
+import java.io.IOException;
+
+import fi.iki.elonen.NanoHTTPD;
+
+// Blocking engine, one thread per connection by NanoHTTPD
+public class NanoServer extends NanoHTTPD implements HubHttp.Engine {
+    private final HubHttp.Handler handler;
+
+    public NanoServer(int port, HubHttp.Handler handler) {
+        super(port);
+        this.handler = handler;
+    }
+
+    @Override
+    public void start() throws IOException {
+        start(NanoHTTPD.SOCKET_READ_TIMEOUT, false);
+    }
+
+    // bodies go out as handler made them, fixed length and pre-encoded gzip stay intact
+    @Override
+    protected boolean useGzipWhenAccepted(Response r) {
+        return false;
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        long length = 0;
+        try {
+            String lengthHeader = session.getHeaders().get("content-length");
+            if (lengthHeader != null) length = Long.parseLong(lengthHeader.trim());
+        } catch (NumberFormatException ignored) {}
+
+        // convert to engine independent request
+        HubHttp.BoundedInputStream body = new HubHttp.BoundedInputStream(session.getInputStream(), length);
+        HubHttp.Request req = new HubHttp.Request(session.getMethod().name(), session.getUri(), session.getHeaders(),
+                session.getParameters(), session.getRemoteIpAddress(), body, length);
+
+        // NanoHTTPD does not decode chunked bodies, they would read as empty, same answer as NIO engine
+        boolean chunked = session.getHeaders().containsKey("transfer-encoding");
+        HubHttp.Response r = chunked ? HubHttp.Response.text(411, "Length required") : handler.handle(req);
+
+        // convert response back
+        Response.IStatus status = new Response.IStatus() {
+            @Override
+            public String getDescription() { return r.status + " " + HubHttp.statusText(r.status); }
+            @Override
+            public int getRequestStatus() { return r.status; }
+        };
+        Response res = r.length >= 0
+                ? newFixedLengthResponse(status, r.mime, r.body, r.length)
+                : newChunkedResponse(status, r.mime, r.body);
+        for (java.util.Map.Entry<String, String> h : r.headers.entrySet()) res.addHeader(h.getKey(), h.getValue());
+        if (chunked || body.remaining() > 0) res.closeConnection(true); // unread body would break next request
+        return res;
+    }
+}
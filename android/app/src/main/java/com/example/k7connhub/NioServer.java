@@ -0,0 +1,580 @@
+package com.example.k7connhub;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Event driven engine, one selector thread owns all sockets
+// handlers run on small worker pool, response bodies are pumped chunk by chunk so idle clients hold no thread
+// requests with body are read on elastic pool, slow uploads never starve state polls
+public class NioServer implements HubHttp.Engine {
+    private static final int MAX_HEAD = 16384; // request line and headers
+    private static final int CHUNK = 65536; // response pump size
+    private static final int BODY_HIGH = 262144; // pause socket reads above this buffered body size
+    private static final long IDLE_TIMEOUT = 30000; // keep-alive and stalled transfer timeout in ms
+
+    private final int port;
+    private final HubHttp.Handler handler;
+    private final int handlerThreads;
+    private final int pumpThreads;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService handlers; // run routes without request body
+    private ExecutorService bodies; // run routes reading request body or blocking on storage, one thread each
+    private ExecutorService pumps; // read response bodies into socket buffers
+    private ScheduledExecutorService timer; // delayed pumps of paced bodies
+    private Thread loop;
+    private volatile boolean running = false;
+    private final ConcurrentLinkedQueue<Conn> changed = new ConcurrentLinkedQueue<>(); // interest updates from workers
+    private final Set<Conn> conns = new HashSet<>(); // selector thread only
+
+    public NioServer(int port, HubHttp.Handler handler) {
+        this(port, handler, 8, 4);
+    }
+
+    public NioServer(int port, HubHttp.Handler handler, int handlerThreads, int pumpThreads) {
+        this.port = port;
+        this.handler = handler;
+        this.handlerThreads = handlerThreads;
+        this.pumpThreads = pumpThreads;
+    }
+
+    @Override
+    public void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(port), 256);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        handlers = Executors.newFixedThreadPool(handlerThreads, daemon("ConnHub-nio-handler"));
+        bodies = Executors.newCachedThreadPool(daemon("ConnHub-nio-body"));
+        pumps = Executors.newFixedThreadPool(pumpThreads, daemon("ConnHub-nio-pump"));
+        timer = Executors.newSingleThreadScheduledExecutor(daemon("ConnHub-nio-timer"));
+        running = true;
+        loop = new Thread(this::selectLoop, "ConnHub-nio-selector");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (selector != null) selector.wakeup();
+        try {
+            if (loop != null) loop.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (handlers != null) handlers.shutdownNow();
+        if (bodies != null) bodies.shutdownNow();
+        if (pumps != null) pumps.shutdownNow();
+        if (timer != null) timer.shutdownNow();
+    }
+
+    // Connection state, socket side is owned by selector thread
+    private static class Conn {
+        static final int HEAD = 0, BODY = 1, BUSY = 2;
+
+        final SocketChannel ch;
+        final SelectionKey key;
+        final String remoteIp;
+        final ByteBuffer head = ByteBuffer.allocate(MAX_HEAD);
+        int state = HEAD;
+        volatile long lastActive = System.currentTimeMillis(); // socket io or body consumed by handler
+        boolean closed = false;
+
+        // request body
+        BodyStream body;
+        long bodyToRead;
+
+        // response, handed between selector and pump workers under lock
+        ByteBuffer out;
+        InputStream src;
+        long srcRemaining; // -1 for chunked
+        boolean srcDone, keepAlive, pumping;
+
+        Conn(SocketChannel ch, SelectionKey key) {
+            this.ch = ch;
+            this.key = key;
+            String ip = "";
+            try {
+                ip = ((InetSocketAddress) ch.getRemoteAddress()).getAddress().getHostAddress();
+            } catch (Exception ignored) {}
+            this.remoteIp = ip;
+        }
+    }
+
+    // Request body fed by selector thread, read by handler thread
+    private class BodyStream extends InputStream {
+        private final Conn conn;
+        private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<>();
+        private long unread; // bytes not yet taken by handler
+        private int buffered = 0;
+        private boolean paused = false, failed = false;
+
+        BodyStream(Conn conn, long length) {
+            this.conn = conn;
+            this.unread = length;
+        }
+
+        synchronized void offer(ByteBuffer chunk) {
+            buffered += chunk.remaining();
+            chunks.add(chunk);
+            if (buffered > BODY_HIGH) paused = true;
+            notifyAll();
+        }
+
+        synchronized boolean isPaused() {
+            return paused;
+        }
+
+        synchronized long unread() {
+            return unread;
+        }
+
+        synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (unread <= 0) return -1;
+            if (len == 0) return 0;
+            long deadline = System.currentTimeMillis() + IDLE_TIMEOUT;
+            while (chunks.isEmpty()) {
+                if (failed) throw new IOException("Connection closed");
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) throw new SocketTimeoutException("Request body timeout");
+                try {
+                    wait(wait);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+
+            // copy from buffered chunks
+            int n = 0;
+            while (n < len && !chunks.isEmpty()) {
+                ByteBuffer chunk = chunks.peek();
+                int take = Math.min(len - n, chunk.remaining());
+                chunk.get(b, off + n, take);
+                n += take;
+                if (!chunk.hasRemaining()) chunks.poll();
+            }
+            buffered -= n;
+            unread -= n;
+            conn.lastActive = System.currentTimeMillis(); // shaped upload drains slowly while socket is paused
+
+            // resume socket reads once drained
+            if (paused && buffered < BODY_HIGH / 2) {
+                paused = false;
+                post(conn);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            synchronized (this) {
+                return buffered;
+            }
+        }
+    }
+
+    private void selectLoop() {
+        long lastSweep = System.currentTimeMillis();
+        while (running) {
+            try {
+                selector.select(1000);
+
+                // apply updates from workers
+                Conn c;
+                while ((c = changed.poll()) != null) updateInterest(c);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Conn conn = (Conn) key.attachment();
+                    try {
+                        if (key.isReadable()) onReadable(conn);
+                        if (key.isValid() && key.isWritable()) onWritable(conn);
+                    } catch (IOException e) {
+                        close(conn);
+                    }
+                }
+
+                // drop idle and stalled connections
+                long now = System.currentTimeMillis();
+                if (now - lastSweep > 1000) {
+                    lastSweep = now;
+                    for (Conn conn : new HashSet<>(conns)) {
+                        boolean working = conn.pumping || (conn.state == Conn.BUSY && conn.out == null) // handler or pump busy
+                                || (conn.state == Conn.BODY && conn.body.isPaused()); // handler still has body to take
+                        if (!working && now - conn.lastActive > IDLE_TIMEOUT) close(conn);
+                    }
+                }
+            } catch (IOException e) {
+                if (!running) break;
+            }
+        }
+
+        // shutdown, release sockets
+        for (Conn conn : new HashSet<>(conns)) close(conn);
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch;
+        while ((ch = serverChannel.accept()) != null) {
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+            Conn conn = new Conn(ch, key);
+            key.attach(conn);
+            conns.add(conn);
+        }
+    }
+
+    private void onReadable(Conn conn) throws IOException {
+        conn.lastActive = System.currentTimeMillis();
+
+        // stream request body to handler
+        if (conn.state == Conn.BODY) {
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(16384, conn.bodyToRead));
+            int n = conn.ch.read(chunk);
+            if (n < 0) throw new IOException("Closed during body");
+            if (n == 0) return;
+            chunk.flip();
+            conn.bodyToRead -= n;
+            conn.body.offer(chunk);
+            if (conn.bodyToRead <= 0) conn.state = Conn.BUSY;
+            updateInterest(conn);
+            return;
+        }
+        if (conn.state != Conn.HEAD) return;
+
+        int n = conn.ch.read(conn.head);
+        if (n < 0) throw new IOException("Closed");
+        parseHead(conn);
+    }
+
+    // parse buffered request head, dispatch to handler when complete
+    private void parseHead(Conn conn) throws IOException {
+        ByteBuffer buf = conn.head;
+        int end = indexOfHeadEnd(buf.array(), buf.position());
+        if (end < 0) {
+            if (!buf.hasRemaining()) sendError(conn, 431, "Request header too large");
+            return;
+        }
+
+        // request line and headers
+        String text = new String(buf.array(), 0, end, StandardCharsets.ISO_8859_1);
+        String[] lines = text.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length < 3) {
+            sendError(conn, 400, "Bad request");
+            return;
+        }
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+        }
+        String method = requestLine[0].toUpperCase(Locale.ROOT);
+        String target = requestLine[1];
+        int q = target.indexOf('?');
+        String path = decodePath(q < 0 ? target : target.substring(0, q));
+        Map<String, List<String>> params = HubHttp.parseQuery(q < 0 ? null : target.substring(q + 1));
+
+        // connection reuse
+        String connection = headers.get("connection");
+        boolean http11 = requestLine[2].equalsIgnoreCase("HTTP/1.1");
+        conn.keepAlive = http11 ? !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+
+        long length = 0;
+        try {
+            if (headers.containsKey("content-length")) length = Long.parseLong(headers.get("content-length"));
+        } catch (NumberFormatException e) {
+            sendError(conn, 400, "Bad content length");
+            return;
+        }
+        if (headers.containsKey("transfer-encoding")) {
+            sendError(conn, 411, "Length required");
+            return;
+        }
+
+        // bytes after head belong to body, rest stays for next request
+        int headLen = end + 4;
+        int extra = buf.position() - headLen;
+        int bodyPart = (int) Math.min(extra, length);
+        conn.body = new BodyStream(conn, length);
+        if (bodyPart > 0) conn.body.offer(ByteBuffer.wrap(Arrays.copyOfRange(buf.array(), headLen, headLen + bodyPart)));
+        byte[] rest = new byte[extra - bodyPart];
+        System.arraycopy(buf.array(), headLen + bodyPart, rest, 0, rest.length);
+        buf.clear();
+        buf.put(rest);
+
+        conn.bodyToRead = length - bodyPart;
+        conn.state = conn.bodyToRead > 0 ? Conn.BODY : Conn.BUSY;
+        if (conn.bodyToRead > 0 && "100-continue".equalsIgnoreCase(headers.get("expect"))) {
+            conn.ch.write(ByteBuffer.wrap("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+        }
+        updateInterest(conn);
+
+        HubHttp.Request req = new HubHttp.Request(method, path, headers, params, conn.remoteIp, conn.body, length);
+        (length > 0 || handler.blocks(req) ? bodies : handlers).execute(() -> runHandler(conn, req));
+    }
+
+    // handler worker, build response head then pump first chunk
+    private void runHandler(Conn conn, HubHttp.Request req) {
+        HubHttp.Response res;
+        try {
+            res = handler.handle(req);
+        } catch (Exception e) {
+            res = HubHttp.Response.text(500, "Error: " + e.getMessage());
+        }
+
+        synchronized (conn) {
+            if (conn.closed) {
+                closeQuietly(res.body);
+                return;
+            }
+            if (conn.body.unread() > 0) conn.keepAlive = false; // unread body, cannot reuse connection
+            boolean noBody = req.method.equals("HEAD") || res.status == 304 || res.status == 204;
+
+            StringBuilder sb = new StringBuilder();
+            sb.append("HTTP/1.1 ").append(res.status).append(' ').append(HubHttp.statusText(res.status)).append("\r\n");
+            if (res.mime != null) sb.append("Content-Type: ").append(res.mime).append("\r\n");
+            boolean emptyStatus = res.status == 304 || res.status == 204;
+            if (res.length >= 0 && !emptyStatus) sb.append("Content-Length: ").append(res.length).append("\r\n");
+            else if (!noBody) sb.append("Transfer-Encoding: chunked\r\n");
+            for (Map.Entry<String, String> h : res.headers.entrySet()) sb.append(h.getKey()).append(": ").append(h.getValue()).append("\r\n");
+            sb.append("Connection: ").append(conn.keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+
+            conn.src = res.body;
+            if (res.body instanceof HubHttp.Paced) ((HubHttp.Paced) res.body).setBlocking(false); // wait in timer, not in pump
+            conn.srcRemaining = res.length;
+            conn.srcDone = noBody;
+            conn.pumping = !noBody;
+            conn.out = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            if (noBody) closeQuietly(res.body);
+        }
+        if (!conn.srcDone) pump(conn);
+        else post(conn);
+    }
+
+    // pump worker, read next chunk of response body
+    private void pump(Conn conn) {
+        byte[] data = new byte[CHUNK];
+        int n = 0;
+        boolean eof = false;
+        IOException error = null;
+        try {
+            long want = conn.srcRemaining >= 0 ? Math.min(CHUNK, conn.srcRemaining) : CHUNK;
+            while (n < want) {
+                if (delayOf(conn) > 0) break; // paced body, continue after delay
+                int r = conn.src.read(data, n, (int) (want - n));
+                if (r < 0) { eof = true; break; }
+                n += r;
+                if (conn.src.available() <= 0) break; // send what we have, do not wait for full chunk
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+
+        synchronized (conn) {
+            if (conn.closed) {
+                closeQuietly(conn.src);
+                return;
+            }
+            if (error != null || (eof && conn.srcRemaining > n)) {
+                // body failed midway, connection cannot be reused
+                conn.keepAlive = false;
+                conn.srcDone = true;
+                closeQuietly(conn.src);
+                if (conn.out == null) conn.out = ByteBuffer.allocate(0); // flush what is left, then close
+            } else {
+                ByteBuffer prev = conn.out;
+                int prefix = prev != null ? prev.remaining() : 0;
+                boolean chunked = conn.srcRemaining < 0;
+                if (!chunked) conn.srcRemaining -= n;
+                boolean done = chunked ? eof : conn.srcRemaining <= 0;
+
+                // head, chunk framing and data in one buffer
+                ByteBuffer buf = ByteBuffer.allocate(prefix + n + 32);
+                if (prev != null) buf.put(prev);
+                if (chunked && n > 0) buf.put((Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                buf.put(data, 0, n);
+                if (chunked && n > 0) buf.put("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                if (chunked && done) buf.put("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                buf.flip();
+                conn.out = buf;
+                if (done) {
+                    conn.srcDone = true;
+                    closeQuietly(conn.src);
+                }
+            }
+            conn.pumping = false;
+        }
+        post(conn);
+    }
+
+    private void onWritable(Conn conn) throws IOException {
+        boolean finished = false, needPump = false;
+        synchronized (conn) {
+            if (conn.out == null || conn.pumping) return;
+            conn.ch.write(conn.out);
+            conn.lastActive = System.currentTimeMillis();
+            if (conn.out.hasRemaining()) return;
+            conn.out = null;
+            if (!conn.srcDone) {
+                conn.pumping = true;
+                needPump = true;
+            } else {
+                finished = true;
+            }
+        }
+        if (needPump) {
+            conn.key.interestOps(0);
+            long delay = delayOf(conn);
+            if (delay > 0) timer.schedule(() -> pumps.execute(() -> pump(conn)), delay, TimeUnit.NANOSECONDS);
+            else pumps.execute(() -> pump(conn));
+            return;
+        }
+
+        // response complete, close or wait for next request
+        if (finished) {
+            if (!conn.keepAlive) {
+                close(conn);
+                return;
+            }
+            conn.state = Conn.HEAD;
+            conn.body = null;
+            conn.src = null;
+            updateInterest(conn);
+            if (conn.head.position() > 0) parseHead(conn); // pipelined request
+        }
+    }
+
+    // selector thread, set socket interest from state
+    private void updateInterest(Conn conn) {
+        if (conn.closed || !conn.key.isValid()) return;
+        int ops = 0;
+        synchronized (conn) {
+            if (conn.out != null && !conn.pumping) ops |= SelectionKey.OP_WRITE; // empty buffer still finishes response
+        }
+        if (conn.state == Conn.HEAD) ops |= SelectionKey.OP_READ;
+        if (conn.state == Conn.BODY && !conn.body.isPaused()) ops |= SelectionKey.OP_READ;
+        conn.key.interestOps(ops);
+    }
+
+    // worker thread, request interest update
+    private void post(Conn conn) {
+        changed.add(conn);
+        selector.wakeup();
+    }
+
+    private void sendError(Conn conn, int status, String msg) {
+        byte[] body = msg.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + " " + HubHttp.statusText(status) + "\r\nContent-Type: text/plain\r\nContent-Length: "
+                + body.length + "\r\nConnection: close\r\n\r\n";
+        synchronized (conn) {
+            ByteBuffer buf = ByteBuffer.allocate(head.length() + body.length);
+            buf.put(head.getBytes(StandardCharsets.ISO_8859_1)).put(body).flip();
+            conn.out = buf;
+            conn.srcDone = true;
+            conn.keepAlive = false;
+        }
+        conn.state = Conn.BUSY;
+        updateInterest(conn);
+    }
+
+    private void close(Conn conn) {
+        synchronized (conn) {
+            if (conn.closed) return;
+            conn.closed = true;
+            if (!conn.pumping) closeQuietly(conn.src);
+        }
+        if (conn.body != null) conn.body.fail();
+        conns.remove(conn);
+        conn.key.cancel();
+        closeQuietly(conn.ch);
+    }
+
+    private static long delayOf(Conn conn) {
+        return conn.src instanceof HubHttp.Paced ? ((HubHttp.Paced) conn.src).delayNanos() : 0;
+    }
+
+    private static int indexOfHeadEnd(byte[] b, int len) {
+        for (int i = 0; i + 3 < len; i++) {
+            if (b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r' && b[i + 3] == '\n') return i;
+        }
+        return -1;
+    }
+
+    // percent decode path, '+' is literal in path
+    private static String decodePath(String path) {
+        try {
+            return URLDecoder.decode(path.replace("+", "%2B"), "UTF-8");
+        } catch (Exception e) {
+            return path;
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable c) {
+        try {
+            if (c != null) c.close();
+        } catch (IOException ignored) {}
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,337 @@
+package com.example.k7connhub;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.regex.Pattern;
+
+// Shared text and file list of one room, rooms are synced and locked independently
+public class Room {
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,32}");
+    private static final Pattern FILE_NAME = Pattern.compile("[A-Za-z0-9_=-]{1,250}"); // base64url, room left for .gz suffix
+    private static final long TOMBSTONE_TTL = 600000; // keep deletes for peers 10 min
+
+    public final String name; // empty for default room
+    public final File dir; // stored files of this room
+
+    // Text Data
+    byte[] textData = new byte[0]; // utf8, replaced never modified
+    long textTs = 0; // no text yet, any peer text wins
+    final Object textLock = new Object();
+    TextJournal journal; // null when text is not persisted
+
+    // File Data
+    static class FileEntry {
+        final String name;
+        final long size;
+        final long time; // modified time of stored file, version for federation
+        final String sortName; // decoded lower case name, for sort and search
+        String peer; // node holding content, null when stored here
+        boolean gz; // stored gzip compressed as name.gz, size stays logical
+        long stamp; // filesTs when put, peers are sent entries newer than their last view
+        FileEntry(String n, long s, long t) { this(n, s, t, decodeName(n).toLowerCase(Locale.ROOT)); }
+        private FileEntry(String n, long s, long t, String sn) { name = n; size = s; time = t; sortName = sn; }
+    }
+    private static final Comparator<FileEntry> BY_NAME = (a, b) -> {
+        int c = a.sortName.compareTo(b.sortName);
+        return c != 0 ? c : a.name.compareTo(b.name);
+    };
+    private static final Comparator<FileEntry> BY_SIZE = (a, b) -> {
+        int c = Long.compare(a.size, b.size);
+        return c != 0 ? c : a.name.compareTo(b.name);
+    };
+    private static final Comparator<FileEntry> BY_TIME = (a, b) -> {
+        int c = Long.compare(a.time, b.time);
+        return c != 0 ? c : a.name.compareTo(b.name);
+    };
+
+    // insertion order for state, sorted indices for pages, changed only by putFile/removeFile/clearIndex
+    final Map<String, FileEntry> filesData = new LinkedHashMap<>();
+    private final TreeSet<FileEntry> byName = new TreeSet<>(BY_NAME);
+    private final TreeSet<FileEntry> bySize = new TreeSet<>(BY_SIZE);
+    private final TreeSet<FileEntry> byTime = new TreeSet<>(BY_TIME);
+    final Map<String, Long> deleted = new HashMap<>(); // tombstones, name -> delete time
+    long filesTs;
+    final Object filesLock = new Object();
+
+    // dir is created by owner, room of missing dir is empty and read only
+    public Room(String name, File dir) {
+        this.name = name;
+        this.dir = dir;
+        this.filesTs = dir.isDirectory() ? System.currentTimeMillis() : 0; // polls of room not created yet see no change
+    }
+
+    // room names are used as directory and URL segment
+    public static boolean isValidName(String name) {
+        return name != null && NAME.matcher(name).matches();
+    }
+
+    // stored file names are base64url, never a path, a dot file or a .gz form of another name
+    public static boolean isValidFileName(String name) {
+        return name != null && FILE_NAME.matcher(name).matches();
+    }
+
+    // prefix for log messages
+    public String tag() {
+        return name.isEmpty() ? "" : "[" + name + "] ";
+    }
+
+    // restore last text, later edits are written behind on io thread
+    public void openJournal(ScheduledExecutorService io) {
+        TextJournal j = new TextJournal(new File(dir, ".text"), io);
+        TextJournal.Version last = j.load();
+        synchronized (textLock) {
+            if (last != null) {
+                textData = last.data;
+                textTs = last.ts;
+            }
+            journal = j;
+        }
+    }
+
+    public void closeJournal() {
+        TextJournal j;
+        synchronized (textLock) {
+            j = journal;
+        }
+        if (j != null) j.close();
+    }
+
+    // Load existing files at room dir, dot files are internal
+    public int loadExistingFiles() {
+        File[] files = dir.listFiles();
+        synchronized (filesLock) {
+            clearIndex();
+            if (files != null) {
+                for (File f : files) {
+                    if (!f.isFile() || f.getName().startsWith(".")) continue;
+                    if (f.getName().endsWith(GzipStore.SUFFIX)) {
+                        String n = f.getName().substring(0, f.getName().length() - GzipStore.SUFFIX.length());
+                        if (!isValidFileName(n)) continue;
+                        FileEntry entry = new FileEntry(n, GzipStore.logicalSize(f), f.lastModified());
+                        entry.gz = true;
+                        putFile(entry);
+                    } else if (isValidFileName(f.getName())) {
+                        putFile(new FileEntry(f.getName(), f.length(), f.lastModified()));
+                    }
+                }
+            }
+            filesTs = nextTs(filesTs);
+            return filesData.size();
+        }
+    }
+
+    // file holding content of entry here
+    public File storedFile(FileEntry entry) {
+        return new File(dir, entry.gz ? entry.name + GzipStore.SUFFIX : entry.name);
+    }
+
+    // delete content in either form
+    public void deleteStored(String name) {
+        new File(dir, name).delete();
+        new File(dir, name + GzipStore.SUFFIX).delete();
+    }
+
+    // find entry by stored name, call with filesLock
+    FileEntry findFile(String name) {
+        return filesData.get(name);
+    }
+
+    // add or replace entry of same name, call with filesLock
+    void putFile(FileEntry entry) {
+        removeFile(entry.name);
+        entry.stamp = filesTs = nextTs(filesTs);
+        filesData.put(entry.name, entry);
+        byName.add(entry);
+        bySize.add(entry);
+        byTime.add(entry);
+    }
+
+    // remove entry from list and indices, call with filesLock
+    FileEntry removeFile(String name) {
+        FileEntry old = filesData.remove(name);
+        if (old != null) {
+            byName.remove(old);
+            bySize.remove(old);
+            byTime.remove(old);
+        }
+        return old;
+    }
+
+    void clearIndex() {
+        filesData.clear();
+        byName.clear();
+        bySize.clear();
+        byTime.clear();
+    }
+
+    // One page of sorted file list
+    public static class Page {
+        public final List<FileEntry> items = new ArrayList<>();
+        public String next; // cursor of next page, null at end
+        public int total; // files matching prefix and query, all pages together
+        public int roomTotal; // files in room, for actions on whole room
+    }
+
+    /**
+     * Page of files from sorted index, cursor continues after last item of previous page
+     * @param sort name, size or time
+     * @param prefix decoded name prefix, range of name index when sorted by name
+     * @param query decoded name substring
+     */
+    public Page page(String sort, boolean desc, String cursor, String prefix, String query, int limit) {
+        if (prefix != null) prefix = prefix.toLowerCase(Locale.ROOT);
+        if (query != null) query = query.toLowerCase(Locale.ROOT);
+        boolean byNameSort = sort.equals("name");
+        Page page = new Page();
+        synchronized (filesLock) {
+            NavigableSet<FileEntry> set = byNameSort ? byName : sort.equals("size") ? bySize : sort.equals("time") ? byTime : null;
+            if (set == null) throw new IllegalArgumentException("Unknown sort: " + sort);
+            if (desc) set = set.descendingSet();
+            if (cursor != null) {
+                set = set.tailSet(probe(sort, cursor), false);
+            } else if (prefix != null && byNameSort) {
+                set = set.tailSet(new FileEntry("", 0, 0, desc ? prefix + '\uffff' : prefix), true); // start of prefix range
+            }
+
+            FileEntry last = null;
+            for (FileEntry e : set) {
+                if (prefix != null && !e.sortName.startsWith(prefix)) {
+                    if (byNameSort) break; // past prefix range
+                    continue;
+                }
+                if (query != null && !e.sortName.contains(query)) continue;
+                if (page.items.size() == limit) {
+                    page.next = cursorOf(sort, last);
+                    break;
+                }
+                page.items.add(e);
+                last = e;
+            }
+            page.roomTotal = filesData.size();
+            page.total = prefix == null && query == null ? page.roomTotal : countMatches(prefix, query);
+        }
+        return page;
+    }
+
+    // matches of filter in whole list, prefix range of name index bounds the scan, call with filesLock
+    private int countMatches(String prefix, String query) {
+        NavigableSet<FileEntry> set = prefix != null ? byName.tailSet(new FileEntry("", 0, 0, prefix), true) : byName;
+        int count = 0;
+        for (FileEntry e : set) {
+            if (prefix != null && !e.sortName.startsWith(prefix)) break;
+            if (query == null || e.sortName.contains(query)) count++;
+        }
+        return count;
+    }
+
+    // cursor is sort key and stored name of last item, base64url names never contain ':'
+    private static String cursorOf(String sort, FileEntry e) {
+        String key = sort.equals("name") ? e.sortName : String.valueOf(sort.equals("size") ? e.size : e.time);
+        return key + ":" + e.name;
+    }
+
+    private static FileEntry probe(String sort, String cursor) {
+        int colon = cursor.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("Bad cursor");
+        String key = cursor.substring(0, colon), name = cursor.substring(colon + 1);
+        if (sort.equals("name")) return new FileEntry(name, 0, 0, key);
+        long value = Long.parseLong(key);
+        return sort.equals("size") ? new FileEntry(name, value, 0, "") : new FileEntry(name, 0, value, "");
+    }
+
+    // restore real name from base64url
+    static String decodeName(String encodedName) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(encodedName), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            return encodedName;
+        }
+    }
+
+    // remember delete for peers, call with filesLock, true if tombstone is new or newer
+    boolean markDeleted(String name, long time) {
+        Long old = deleted.get(name);
+        boolean newer = old == null || old < time;
+        if (newer) deleted.put(name, time);
+        Iterator<Long> it = deleted.values().iterator();
+        while (it.hasNext()) if (time - it.next() > TOMBSTONE_TTL) it.remove();
+        return newer;
+    }
+
+    // versions only move forward, even if peer clock was ahead
+    long nextTs(long current) {
+        return Math.max(System.currentTimeMillis(), current + 1);
+    }
+
+    /**
+     * Last writer wins on text version, same version is settled by content
+     * @return true if remote text was taken
+     */
+    public boolean mergeText(byte[] text, long ts) {
+        synchronized (textLock) {
+            if (Arrays.equals(text, textData)) return false;
+            if (ts < textTs || (ts == textTs && Arrays.compare(text, textData) < 0)) return false;
+            textData = text;
+            textTs = ts;
+            if (journal != null) journal.record(text, ts);
+            return true;
+        }
+    }
+
+    /**
+     * Last writer wins per file on entry time, so uploads on different hubs are all kept
+     * @param remote entries of peer, peer field is the node holding content
+     * @param gone tombstones of peer
+     * @return true if file list changed
+     */
+    public boolean mergeFiles(List<FileEntry> remote, Map<String, Long> gone) {
+        boolean changed = false;
+        synchronized (filesLock) {
+            for (FileEntry e : remote) {
+                Long tomb = deleted.get(e.name);
+                if (tomb != null && tomb >= e.time) continue;
+                FileEntry local = findFile(e.name);
+                if (local != null && local.time >= e.time) continue;
+                if (local != null && local.peer == null) deleteStored(local.name); // older content
+                FileEntry entry = new FileEntry(e.name, e.size, e.time, e.sortName);
+                entry.peer = e.peer;
+                putFile(entry);
+                changed = true;
+            }
+            for (Map.Entry<String, Long> g : gone.entrySet()) {
+                FileEntry local = findFile(g.getKey());
+                if (local != null && local.time <= g.getValue()) {
+                    removeFile(local.name);
+                    if (local.peer == null) deleteStored(local.name);
+                    changed = true;
+                }
+                changed |= markDeleted(g.getKey(), g.getValue()); // passed on to peers not seen yet
+            }
+            if (changed) filesTs = nextTs(filesTs);
+        }
+        return changed;
+    }
+
+    // delete stored files, including those not in list
+    public void clearFiles() {
+        File[] files = dir.listFiles();
+        synchronized (filesLock) {
+            if (files != null) for (File f : files) if (f.isFile() && !f.getName().startsWith(".")) f.delete(); // keep text journal
+            clearIndex();
+            filesTs = nextTs(filesTs);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.example.k7connhub;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Write-behind text store, edits are coalesced and appended on io thread, journal is compacted to snapshot
+// record: ts(8) len(4) utf8 text crc(4), torn tail after crash is cut on load
+public class TextJournal {
+    private static final long COALESCE_MS = 500; // edits within window are written once
+    private static final int SNAPSHOT_EVERY = 64; // records before compaction
+    private static final int HISTORY_MAX = 50; // versions kept
+    private static final long HISTORY_BYTES = 8L * 1048576; // history memory, latest is always kept
+
+    // Stored text version
+    public static class Version {
+        public final long ts;
+        final byte[] data; // utf8, decoded on use
+        Version(long ts, byte[] data) {
+            this.ts = ts;
+            this.data = data;
+        }
+        public String text() {
+            return new String(data, StandardCharsets.UTF_8);
+        }
+        public int size() {
+            return data.length;
+        }
+    }
+
+    private final File journalFile, snapshotFile;
+    private final ScheduledExecutorService io;
+    private final Deque<Version> history = new ArrayDeque<>(); // oldest first, io thread writes
+    private long historyBytes = 0;
+    private int records = 0; // in journal since snapshot
+    private long journalBytes = 0, snapshotBytes = 0; // on disk, records hold full text so journal grows fast
+    private FileOutputStream out;
+
+    // pending edit, replaced by later edits until flushed
+    private Version pending;
+    private boolean scheduled;
+
+    /**
+     * @param base path prefix, journal and snapshot are stored next to it
+     * @param io single thread shared by journals, writes of all rooms are serialized there
+     */
+    public TextJournal(File base, ScheduledExecutorService io) {
+        this.journalFile = new File(base.getPath() + ".journal");
+        this.snapshotFile = new File(base.getPath() + ".snapshot");
+        this.io = io;
+    }
+
+    /**
+     * Restore history from snapshot and journal
+     * @return latest version, null if nothing stored
+     */
+    public synchronized Version load() {
+        history.clear();
+        historyBytes = 0;
+        readRecords(snapshotFile, false);
+        records = readRecords(journalFile, true);
+        snapshotBytes = snapshotFile.length();
+        journalBytes = journalFile.length(); // torn tail already cut
+        return history.peekLast();
+    }
+
+    // keep edit in memory, never blocks on disk, data is not copied and must not change
+    public synchronized void record(byte[] data, long ts) {
+        pending = new Version(ts, data);
+        if (scheduled) return;
+        scheduled = true;
+        io.schedule(this::flush, COALESCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // versions newest first, including edit not yet written
+    public synchronized List<Version> history() {
+        List<Version> list = new ArrayList<>();
+        if (pending != null) list.add(pending);
+        for (Iterator<Version> it = history.descendingIterator(); it.hasNext(); ) list.add(it.next());
+        return list;
+    }
+
+    public Version find(long ts) {
+        for (Version v : history()) if (v.ts == ts) return v;
+        return null;
+    }
+
+    // write pending edit and release journal file, waits for io thread so next journal of same files sees all
+    public void close() {
+        Future<?> done = io.submit(() -> {
+            flush();
+            closeJournal();
+        });
+        try {
+            done.get(5, TimeUnit.SECONDS);
+        } catch (Exception ignored) {} // io thread stopped or stuck, nothing more to do here
+    }
+
+    // write pending edit, io thread
+    private void flush() {
+        Version v;
+        synchronized (this) {
+            scheduled = false;
+            if (pending == null) return;
+            v = pending;
+            pending = null;
+        }
+        try {
+            if (out == null) {
+                out = new FileOutputStream(journalFile, true);
+                journalBytes = journalFile.length(); // may hold part of failed write
+            }
+            byte[] record = encode(v);
+            out.write(record);
+            out.getFD().sync();
+            journalBytes += record.length;
+            boolean compact;
+            synchronized (this) {
+                addHistory(v);
+                compact = ++records >= SNAPSHOT_EVERY;
+            }
+            // large texts compact by size, journal stays within history size or last snapshot
+            if (journalBytes > Math.max(HISTORY_BYTES, snapshotBytes)) compact = true;
+            if (compact) snapshot();
+        } catch (IOException e) {
+            closeJournal(); // reopened on next flush
+            synchronized (this) {
+                addHistory(v); // still served from memory
+            }
+        }
+    }
+
+    // history to snapshot, then start empty journal
+    private void snapshot() throws IOException {
+        List<Version> versions;
+        synchronized (this) {
+            versions = new ArrayList<>(history);
+        }
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream snap = new FileOutputStream(tmp)) {
+            for (Version v : versions) snap.write(encode(v));
+            snap.getFD().sync();
+        }
+        if (!tmp.renameTo(snapshotFile)) throw new IOException("Snapshot rename failed");
+        snapshotBytes = snapshotFile.length();
+        // crash before truncate only repeats versions, load skips them by ts
+        closeJournal();
+        out = new FileOutputStream(journalFile, false);
+        journalBytes = 0;
+        synchronized (this) {
+            records = 0;
+        }
+    }
+
+    private void closeJournal() {
+        try {
+            if (out != null) out.close();
+        } catch (IOException ignored) {}
+        out = null;
+    }
+
+    private void addHistory(Version v) {
+        history.addLast(v);
+        historyBytes += v.data.length;
+        while (history.size() > 1 && (history.size() > HISTORY_MAX || historyBytes > HISTORY_BYTES)) {
+            historyBytes -= history.removeFirst().data.length;
+        }
+    }
+
+    private static byte[] encode(Version v) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(v.data.length + 16);
+        DataOutputStream data = new DataOutputStream(buf);
+        data.writeLong(v.ts);
+        data.writeInt(v.data.length);
+        data.write(v.data);
+        data.writeInt((int) crcOf(v.ts, v.data));
+        return buf.toByteArray();
+    }
+
+    private static long crcOf(long ts, byte[] data) {
+        CRC32 crc = new CRC32();
+        for (int i = 56; i >= 0; i -= 8) crc.update((int) (ts >>> i) & 0xff);
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    // read valid records into history, cut torn tail, return record count
+    private int readRecords(File file, boolean truncate) {
+        if (!file.exists()) return 0;
+        int count = 0;
+        long good = 0;
+        try (InputStream fin = new FileInputStream(file);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(fin))) {
+            long max = file.length();
+            while (true) {
+                long ts = in.readLong();
+                int len = in.readInt();
+                if (len < 0 || good + 16 + len > max) break;
+                byte[] data = new byte[len];
+                in.readFully(data);
+                if (in.readInt() != (int) crcOf(ts, data)) break;
+                good += 16 + len;
+                count++;
+                Version last = history.peekLast();
+                if (last == null || ts > last.ts) addHistory(new Version(ts, data));
+            }
+        } catch (EOFException ignored) {
+        } catch (IOException e) {
+            return count;
+        }
+        if (truncate && good < file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(good);
+            } catch (IOException ignored) {}
+        }
+        return count;
+    }
+}
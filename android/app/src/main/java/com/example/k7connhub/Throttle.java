@@ -0,0 +1,152 @@
+package com.example.k7connhub;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+// Token bucket shaping for transfers, one bucket for all traffic and one per client IP
+// tokens may go negative, so each turn waits behind earlier reservations and transfers take turns
+public class Throttle {
+    public static final int WEIGHT_FILE = 2; // single file up/download
+    public static final int WEIGHT_BULK = 1; // zip archives
+    private static final int QUANTUM = 16384; // bytes per turn and weight
+    private static final long CLIENT_IDLE = 60000; // drop client bucket after idle ms
+
+    // Single bucket, refilled by elapsed time
+    private static class Bucket {
+        final long rate; // bytes per second
+        final long burst;
+        double tokens;
+        long last = System.nanoTime();
+        long lastUse = System.currentTimeMillis();
+
+        Bucket(long rate) {
+            this.rate = rate;
+            this.burst = Math.max(QUANTUM * 4, rate / 4);
+            this.tokens = burst;
+        }
+
+        // take n bytes, return nanos until they are covered
+        synchronized long reserve(long n) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+            last = now;
+            lastUse = System.currentTimeMillis();
+            tokens -= n;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+    }
+
+    private final Bucket global; // null when unlimited
+    private final long clientRate; // 0 when unlimited
+    private final Map<String, Bucket> clients = new HashMap<>();
+
+    /**
+     * @param globalRate bytes per second for all transfers, 0 is unlimited
+     * @param clientRate bytes per second for each client IP, 0 is unlimited
+     */
+    public Throttle(long globalRate, long clientRate) {
+        this.global = globalRate > 0 ? new Bucket(globalRate) : null;
+        this.clientRate = Math.max(0, clientRate);
+    }
+
+    public boolean isEnabled() {
+        return global != null || clientRate > 0;
+    }
+
+    /**
+     * Shape stream by client and weight, stream is returned as is when unlimited
+     * @param weight relative share against other transfers
+     */
+    public InputStream wrap(InputStream in, String ip, int weight) {
+        if (!isEnabled() || in == null) return in;
+        return new Shaped(in, clientBucket(ip), Math.max(1, weight));
+    }
+
+    // reserve on both levels, the slower one decides
+    private long reserve(Bucket client, long n) {
+        long wait = 0;
+        if (client != null) wait = client.reserve(n);
+        if (global != null) wait = Math.max(wait, global.reserve(n));
+        return wait;
+    }
+
+    private Bucket clientBucket(String ip) {
+        if (clientRate <= 0) return null;
+        synchronized (clients) {
+            // remove idle clients
+            long now = System.currentTimeMillis();
+            Iterator<Bucket> it = clients.values().iterator();
+            while (it.hasNext()) if (now - it.next().lastUse > CLIENT_IDLE) it.remove();
+
+            Bucket b = clients.get(ip);
+            if (b == null) clients.put(ip, b = new Bucket(clientRate));
+            return b;
+        }
+    }
+
+    // Shaped stream, sleeps in read or reports delay to non-blocking engine
+    private class Shaped extends FilterInputStream implements HubHttp.Paced {
+        private final Bucket client;
+        private final int quantum;
+        private long readyAt = System.nanoTime();
+        private long credit; // bytes paid for in current turn
+        private boolean blocking = true;
+
+        Shaped(InputStream in, Bucket client, int weight) {
+            super(in);
+            this.client = client;
+            this.quantum = QUANTUM * weight;
+            this.credit = quantum;
+        }
+
+        // own turn or source not ready yet, like a pipe still being written
+        @Override
+        public long delayNanos() {
+            long source = in instanceof HubHttp.Paced ? ((HubHttp.Paced) in).delayNanos() : 0;
+            return Math.max(turnDelay(), source);
+        }
+
+        @Override
+        public void setBlocking(boolean blocking) {
+            this.blocking = blocking;
+            if (in instanceof HubHttp.Paced) ((HubHttp.Paced) in).setBlocking(blocking);
+        }
+
+        private long turnDelay() {
+            return Math.max(0, readyAt - System.nanoTime());
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long delay = turnDelay();
+            if (blocking && delay > 0) {
+                try {
+                    Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            // one quantum per turn, heavier transfers take bigger turns whatever the reader buffer size
+            int n = in.read(b, off, (int) Math.min(len, credit));
+            if (n > 0) {
+                credit -= n;
+                if (credit <= 0) {
+                    credit = quantum;
+                    readyAt = System.nanoTime() + reserve(client, quantum);
+                }
+            }
+            return n;
+        }
+    }
+}
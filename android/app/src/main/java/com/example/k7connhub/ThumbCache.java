@@ -0,0 +1,180 @@
+package com.example.k7connhub;
+
+import android.graphics.Bitmap;
+import android.media.ThumbnailUtils;
+import android.util.Size;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Preview images of shared files, made by background workers and kept in size-capped disk cache
+public class ThumbCache {
+    private static final int THUMB_SIZE = 256; // max edge in px
+    private static final int WORKERS = 2; // concurrent decodes, bitmaps are memory heavy
+    private static final int FAILED_MAX = 1024; // remembered files that cannot be decoded
+    private static final String[] IMAGE_EXT = {"jpg", "jpeg", "png", "gif", "webp", "bmp", "heic", "heif"};
+    private static final String[] VIDEO_EXT = {"mp4", "m4v", "mkv", "webm", "3gp", "mov"};
+
+    private final File dir;
+    private final long maxBytes;
+    private final ExecutorService workers;
+    private final Map<String, Future<File>> pending = new HashMap<>();
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true); // key -> bytes, LRU order
+    private final LinkedHashMap<String, Boolean> failed = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > FAILED_MAX;
+        }
+    }; // keys whose decode failed, same path size and mtime is not decoded again
+    private long totalBytes = 0;
+
+    public ThumbCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (!dir.exists()) dir.mkdirs();
+        this.workers = Executors.newFixedThreadPool(WORKERS, r -> {
+            Thread t = new Thread(r, "ConnHub-thumb");
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+
+        // restore cache index, oldest first
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : files) {
+            if (f.getName().endsWith(".tmp")) { f.delete(); continue; }
+            entries.put(f.getName(), f.length());
+            totalBytes += f.length();
+        }
+        synchronized (this) { evict(); }
+    }
+
+    // check preview support by real file name
+    public static boolean isSupported(String realName) {
+        return isType(realName, IMAGE_EXT) || isType(realName, VIDEO_EXT);
+    }
+
+    /**
+     * Get cached preview, or wait for background generation
+     * @param src source file on disk
+     * @param realName decoded name, used to detect file type
+     * @param timeoutMs max wait time for generation
+     * @return preview file, null if preview is not available
+     */
+    public File get(File src, String realName, long timeoutMs) throws IOException, TimeoutException {
+        String key = keyOf(src.getPath(), src.length(), src.lastModified());
+        Future<File> task;
+        synchronized (this) {
+            File cached = new File(dir, key);
+            if (entries.get(key) != null && cached.exists()) return cached;
+            if (failed.containsKey(key)) return null;
+
+            // share running task for same key
+            task = pending.get(key);
+            if (task == null) {
+                task = workers.submit(() -> generate(src, realName, key));
+                pending.put(key, task);
+            }
+        }
+
+        try {
+            return task.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    // decode and scale on worker thread
+    private File generate(File src, String realName, String key) throws IOException {
+        try {
+            Size size = new Size(THUMB_SIZE, THUMB_SIZE);
+            Bitmap bmp;
+            try {
+                bmp = isType(realName, VIDEO_EXT)
+                        ? ThumbnailUtils.createVideoThumbnail(src, size, null)
+                        : ThumbnailUtils.createImageThumbnail(src, size, null);
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) { failed.put(key, Boolean.TRUE); } // not a picture or unsupported codec
+                throw e;
+            }
+
+            // write temp then rename, readers never see partial file
+            File tmp = new File(dir, key + ".tmp");
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                bmp.compress(Bitmap.CompressFormat.JPEG, 80, out);
+            } finally {
+                bmp.recycle();
+            }
+            File thumb = new File(dir, key);
+            if (!tmp.renameTo(thumb)) {
+                tmp.delete();
+                throw new IOException("Cannot store preview");
+            }
+
+            synchronized (this) {
+                Long old = entries.put(key, thumb.length());
+                totalBytes += thumb.length() - (old != null ? old : 0);
+                evict();
+            }
+            return thumb;
+        } finally {
+            synchronized (this) { pending.remove(key); }
+        }
+    }
+
+    // drop least recently used previews over size cap
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            new File(dir, e.getKey()).delete();
+            totalBytes -= e.getValue();
+            it.remove();
+        }
+    }
+
+    // cache key from path, size and modified time
+    private static String keyOf(String path, long size, long modified) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] hash = md.digest((path + "|" + size + "|" + modified).getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) sb.append(String.format(Locale.ROOT, "%02x", b));
+            return sb.toString();
+        } catch (Exception e) {
+            return Integer.toHexString((path + "|" + size + "|" + modified).hashCode());
+        }
+    }
+
+    private static boolean isType(String realName, String[] exts) {
+        int dot = realName.lastIndexOf('.');
+        if (dot < 0) return false;
+        String ext = realName.substring(dot + 1).toLowerCase(Locale.ROOT);
+        for (String e : exts) if (e.equals(ext)) return true;
+        return false;
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.k7connhub;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Wi-Fi and CPU locks held while requests are in flight, released after idle timeout
+// screen off puts Wi-Fi in power save, transfers drop to a crawl without these
+public class TransferLocks {
+    private static final long IDLE_MS = 30000; // keep locks between polls and chunks
+
+    private final WifiManager.WifiLock lowLatency; // foreground and screen on
+    private final WifiManager.WifiLock highPerf; // screen off, where still honored
+    private final PowerManager.WakeLock cpu;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable onChange; // lock state changed, called on main thread
+    private final Runnable release = this::releaseIfIdle;
+    private int inFlight = 0;
+    private boolean held = false;
+
+    @SuppressWarnings("deprecation")
+    public TransferLocks(Context context, Runnable onChange) {
+        WifiManager wifi = context.getApplicationContext().getSystemService(WifiManager.class);
+        PowerManager power = context.getSystemService(PowerManager.class);
+        lowLatency = wifi.createWifiLock(WifiManager.WIFI_MODE_FULL_LOW_LATENCY, "ConnHub:lowLatency");
+        highPerf = wifi.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, "ConnHub:highPerf");
+        cpu = power.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "ConnHub:transfer");
+        lowLatency.setReferenceCounted(false);
+        highPerf.setReferenceCounted(false);
+        cpu.setReferenceCounted(false);
+        this.onChange = onChange;
+    }
+
+    public synchronized boolean isHeld() {
+        return held;
+    }
+
+    // request started, take locks if not held
+    public synchronized void begin() {
+        inFlight++;
+        handler.removeCallbacks(release);
+        if (held) return;
+        lowLatency.acquire();
+        highPerf.acquire();
+        cpu.acquire();
+        held = true;
+        handler.post(onChange);
+    }
+
+    // request finished, release after idle timeout
+    public synchronized void end() {
+        if (--inFlight <= 0) {
+            inFlight = 0;
+            handler.postDelayed(release, IDLE_MS);
+        }
+    }
+
+    public synchronized void shutdown() {
+        handler.removeCallbacks(release);
+        inFlight = 0;
+        releaseLocks();
+    }
+
+    private synchronized void releaseIfIdle() {
+        if (inFlight == 0) releaseLocks();
+    }
+
+    private void releaseLocks() {
+        if (!held) return;
+        if (lowLatency.isHeld()) lowLatency.release();
+        if (highPerf.isHeld()) highPerf.release();
+        if (cpu.isHeld()) cpu.release();
+        held = false;
+        handler.post(onChange);
+    }
+
+    // Handler wrapper, request is in flight until response body is closed by engine
+    public HubHttp.Handler wrap(HubHttp.Handler routes) {
+        return new HubHttp.Handler() {
+            @Override
+            public HubHttp.Response handle(HubHttp.Request req) {
+                begin();
+                HubHttp.Response res;
+                try {
+                    res = routes.handle(req);
+                } catch (RuntimeException e) {
+                    end();
+                    throw e;
+                }
+                HubHttp.Response tracked = new HubHttp.Response(res.status, res.mime, new Tracked(res.body), res.length);
+                tracked.headers.putAll(res.headers);
+                return tracked;
+            }
+
+            @Override
+            public boolean blocks(HubHttp.Request req) {
+                return routes.blocks(req);
+            }
+        };
+    }
+
+    // Body stream, ends request once on close
+    private class Tracked extends FilterInputStream implements HubHttp.Paced {
+        private boolean closed = false;
+
+        Tracked(InputStream in) {
+            super(in);
+        }
+
+        // keep shaping of throttled body visible to engine
+        @Override
+        public long delayNanos() {
+            return in instanceof HubHttp.Paced ? ((HubHttp.Paced) in).delayNanos() : 0;
+        }
+
+        @Override
+        public void setBlocking(boolean blocking) {
+            if (in instanceof HubHttp.Paced) ((HubHttp.Paced) in).setBlocking(blocking);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return in.read(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            boolean first;
+            synchronized (this) {
+                first = !closed;
+                closed = true;
+            }
+            try {
+                super.close();
+            } finally {
+                if (first) end();
+            }
+        }
+    }
+}
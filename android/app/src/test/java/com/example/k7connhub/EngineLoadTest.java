@@ -0,0 +1,254 @@
+package com.example.k7connhub;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Stub route set shaped like ConnHubService, checked on NanoHTTPD and NIO engines.
+ * Load comparison of both engines is a benchmark, run with -Dconnhub.bench=true.
+ */
+public class EngineLoadTest {
+    private static final int BIG = 4 * 1048576;
+    private static final byte[] BIG_DATA = new byte[BIG];
+    static {
+        for (int i = 0; i < BIG; i++) BIG_DATA[i] = (byte) (i * 31 + 7);
+    }
+    private static final byte[] TEXT = "shared text, compressible shared text".getBytes(StandardCharsets.UTF_8);
+
+    // minimal route set shaped like ConnHubService
+    private static HubHttp.Handler routes(File spool) {
+        return req -> {
+            try {
+                if (req.uri.equals("/api/state")) return HubHttp.Response.json("{\"text\":{\"updated\":false},\"files\":{\"updated\":false}}");
+                if (req.method.equals("GET") && req.uri.equals("/api/text")) return HubHttp.Response.bytes(200, "text/plain; charset=utf-8", TEXT);
+                if (req.uri.equals("/api/text")) return HubHttp.Response.json("{\"len\":" + req.bodyText(1048576).length() + "}");
+                if (req.uri.equals("/api/files/download/big")) return new HubHttp.Response(200, "application/octet-stream", new ByteArrayInputStream(BIG_DATA), BIG);
+                if (req.uri.equals("/api/files/download-all")) {
+                    // written by background worker like zips, in pieces so reader finds pipe empty
+                    HubHttp.Pipe pipe = new HubHttp.Pipe(65536);
+                    new Thread(() -> {
+                        try {
+                            OutputStream out = pipe.sink();
+                            for (int off = 0; off < BIG; off += 1048576) {
+                                out.write(BIG_DATA, off, 1048576);
+                                Thread.sleep(10);
+                            }
+                            out.close();
+                        } catch (IOException | InterruptedException e) {
+                            pipe.fail(new IOException(e));
+                        }
+                    }).start();
+                    return HubHttp.Response.stream(200, "application/zip", pipe);
+                }
+                if (req.uri.equals("/api/files/upload")) {
+                    List<HubHttp.Part> parts = HubHttp.parseMultipart(req, spool);
+                    StringBuilder sb = new StringBuilder();
+                    for (HubHttp.Part p : parts) {
+                        sb.append(p.name).append('=').append(p.file != null ? String.valueOf(p.file.length()) : p.value).append(';');
+                        if (p.file != null) sb.append(Files.readAllBytes(p.file.toPath())[p.file.length() > 0 ? (int) p.file.length() - 1 : 0]).append(';');
+                    }
+                    HubHttp.deleteParts(parts);
+                    return HubHttp.Response.text(200, sb.toString());
+                }
+                return HubHttp.Response.text(404, "Not Found");
+            } catch (IOException e) {
+                return HubHttp.Response.text(500, e.getMessage());
+            }
+        };
+    }
+
+    @Test
+    public void routes_workOnBothEngines() throws Exception {
+        File spool = Files.createTempDirectory("spool").toFile();
+        for (boolean nio : new boolean[]{false, true}) {
+            int port = freePort();
+            HubHttp.Engine engine = nio ? new NioServer(port, routes(spool)) : new NanoServer(port, routes(spool));
+            engine.start();
+            try {
+                String base = "http://127.0.0.1:" + port;
+                assertTrue(new String(get(base + "/api/state"), StandardCharsets.UTF_8).contains("updated"));
+                assertArrayEquals(BIG_DATA, get(base + "/api/files/download/big"));
+                assertArrayEquals(BIG_DATA, get(base + "/api/files/download-all"));
+                assertEquals("{\"len\":5}", new String(post(base + "/api/text", "text/plain", "hello".getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8));
+                assertRawText(base + "/api/text");
+                assertEquals("chunked body is refused, never read as empty", 411, putChunked(base + "/api/text", "hello".getBytes(StandardCharsets.UTF_8)));
+
+                // multipart with file and field, file ends with byte 42
+                byte[] file = new byte[300000];
+                file[file.length - 1] = 42;
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                body.write(("--XyZ\r\nContent-Disposition: form-data; name=\"filename\"\r\n\r\naGVsbG8\r\n"
+                        + "--XyZ\r\nContent-Disposition: form-data; name=\"file\"; filename=\"a.bin\"\r\nContent-Type: application/octet-stream\r\n\r\n")
+                        .getBytes(StandardCharsets.UTF_8));
+                body.write(file);
+                body.write("\r\n--XyZ--\r\n".getBytes(StandardCharsets.UTF_8));
+                String res = new String(post(base + "/api/files/upload", "multipart/form-data; boundary=XyZ", body.toByteArray()), StandardCharsets.UTF_8);
+                assertEquals((nio ? "nio " : "nano ") + res, "filename=aGVsbG8;file=300000;42;", res);
+            } finally {
+                engine.stop();
+            }
+        }
+    }
+
+    @Test
+    public void load_compareEngines() throws Exception {
+        assumeTrue("benchmark, run with -Dconnhub.bench=true", Boolean.getBoolean("connhub.bench"));
+        File spool = Files.createTempDirectory("spool").toFile();
+        LoadResult nano = runLoad(false, spool);
+        LoadResult nio = runLoad(true, spool);
+        System.out.println("EngineLoadTest nano: " + nano);
+        System.out.println("EngineLoadTest nio:  " + nio);
+        assertTrue("nio holds no thread per slow download", nio.serverThreads < nano.serverThreads);
+    }
+
+    private static class LoadResult {
+        int polls, failures, serverThreads;
+        double p50, p99; // ms
+
+        @Override
+        public String toString() {
+            return String.format("polls=%d p50=%.2fms p99=%.2fms failures=%d serverThreads=%d", polls, p50, p99, failures, serverThreads);
+        }
+    }
+
+    // 40 slow downloaders hold connections open while 160 clients poll state
+    private LoadResult runLoad(boolean nio, File spool) throws Exception {
+        int port = freePort();
+        HubHttp.Engine engine = nio ? new NioServer(port, routes(spool)) : new NanoServer(port, routes(spool));
+        engine.start();
+        String base = "http://127.0.0.1:" + port;
+        int baseThreads = Thread.activeCount();
+
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger failures = new AtomicInteger();
+        AtomicInteger peakThreads = new AtomicInteger();
+        long until = System.currentTimeMillis() + 6000;
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            boolean downloader = i < 40;
+            Thread t = new Thread(() -> {
+                while (System.currentTimeMillis() < until) {
+                    try {
+                        if (downloader) {
+                            slowDownload(base + "/api/files/download/big", until);
+                        } else {
+                            long start = System.nanoTime();
+                            get(base + "/api/state");
+                            latencies.add(System.nanoTime() - start);
+                            Thread.sleep(50);
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+            t.start();
+            clients.add(t);
+        }
+        while (System.currentTimeMillis() < until) {
+            peakThreads.accumulateAndGet(Thread.activeCount() - baseThreads - clients.size(), Math::max);
+            Thread.sleep(200);
+        }
+        for (Thread t : clients) t.join();
+        engine.stop();
+
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        assertFalse("no polls completed", sorted.isEmpty());
+        assertTrue("failures: " + failures.get(), failures.get() < sorted.size() / 100 + 1);
+        LoadResult result = new LoadResult();
+        result.polls = sorted.size();
+        result.p50 = sorted.get(sorted.size() / 2) / 1e6;
+        result.p99 = sorted.get(sorted.size() * 99 / 100) / 1e6;
+        result.failures = failures.get();
+        result.serverThreads = peakThreads.get();
+        return result;
+    }
+
+    private static void slowDownload(String url, long until) throws IOException, InterruptedException {
+        HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+        try (InputStream in = c.getInputStream()) {
+            byte[] buf = new byte[65536];
+            while (in.read(buf) > 0) {
+                Thread.sleep(20);
+                if (System.currentTimeMillis() > until) break;
+            }
+        }
+    }
+
+    // client accepting gzip still gets body as handler made it, with length
+    private static void assertRawText(String url) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+        c.setRequestProperty("Accept-Encoding", "gzip");
+        try (InputStream in = c.getInputStream()) {
+            assertNull("no transform", c.getHeaderField("Content-Encoding"));
+            assertNull("fixed length", c.getHeaderField("Transfer-Encoding"));
+            assertEquals(String.valueOf(TEXT.length), c.getHeaderField("Content-Length"));
+            assertArrayEquals(TEXT, readAll(in));
+        }
+    }
+
+    private static byte[] get(String url) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+        try (InputStream in = c.getInputStream()) {
+            return readAll(in);
+        }
+    }
+
+    private static byte[] post(String url, String type, byte[] body) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+        c.setRequestMethod("POST");
+        c.setDoOutput(true);
+        c.setRequestProperty("Content-Type", type);
+        c.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = c.getOutputStream()) {
+            out.write(body);
+        }
+        try (InputStream in = c.getInputStream()) {
+            return readAll(in);
+        }
+    }
+
+    private static int putChunked(String url, byte[] body) throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+        c.setRequestMethod("PUT");
+        c.setDoOutput(true);
+        c.setChunkedStreamingMode(0);
+        try (OutputStream out = c.getOutputStream()) {
+            out.write(body);
+        } catch (IOException ignored) {} // server may answer before body is sent
+        return c.getResponseCode();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[65536];
+        int n;
+        while ((n = in.read(buf)) > 0) out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
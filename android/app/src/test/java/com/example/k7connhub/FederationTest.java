@@ -0,0 +1,259 @@
+package com.example.k7connhub;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Three hubs on loopback with stub room access, each serving state and downloads on its own NIO engine.
+ * Checks text last writer wins, per file merge with lazy fetch and tombstone propagation.
+ */
+public class FederationTest {
+    private static final long WAIT = 15000; // beacons every 2 s, changes are announced at once
+
+    // One hub, default room plus named rooms under its temp dir
+    private static class Node {
+        final File base;
+        final Room def;
+        final Map<String, Room> rooms = new ConcurrentHashMap<>();
+        final Federation fed;
+        final NioServer server;
+
+        Node(String id, int discoveryPort, NetworkInterface nif) throws IOException {
+            base = Files.createTempDirectory("fed" + id).toFile();
+            def = new Room("", base);
+            int port = freePort();
+            fed = new Federation(id, port, InetAddress.getByName("239.255.42.99"), discoveryPort, nif, new Federation.Rooms() {
+                @Override
+                public Collection<Room> all() {
+                    List<Room> all = new ArrayList<>();
+                    all.add(def);
+                    all.addAll(rooms.values());
+                    return all;
+                }
+                @Override
+                public Room get(String name) {
+                    if (name.isEmpty()) return def;
+                    return rooms.computeIfAbsent(name, n -> {
+                        File dir = new File(base, ".rooms/" + n);
+                        dir.mkdirs();
+                        return new Room(n, dir);
+                    });
+                }
+            }, msg -> {});
+
+            // state and download routes like ConnHubService, default room only
+            server = new NioServer(port, req -> {
+                try {
+                    if (req.uri.equals(Federation.STATE_PATH)) return HubHttp.Response.text(200, fed.dumpState(req.param("since", null)));
+                    if (req.uri.startsWith("/api/files/download/")) {
+                        File f = new File(def.dir, req.uri.substring(req.uri.lastIndexOf('/') + 1));
+                        if (f.isFile()) return new HubHttp.Response(200, "application/octet-stream", new FileInputStream(f), f.length());
+                    }
+                } catch (IOException ignored) {}
+                return HubHttp.Response.text(404, "Not Found");
+            });
+            server.start();
+            fed.start();
+        }
+
+        void stop() {
+            fed.stop();
+            server.stop();
+        }
+
+        // local edit, as text route does it
+        void writeText(String text, long ts) {
+            assertTrue(def.mergeText(text.getBytes(StandardCharsets.UTF_8), ts));
+            fed.changed();
+        }
+
+        String text() {
+            synchronized (def.textLock) {
+                return new String(def.textData, StandardCharsets.UTF_8);
+            }
+        }
+
+        // local upload, as upload route does it
+        void upload(String name, String content) throws IOException {
+            File f = new File(def.dir, name);
+            Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+            synchronized (def.filesLock) {
+                def.putFile(new Room.FileEntry(name, f.length(), f.lastModified()));
+                def.filesTs = def.nextTs(def.filesTs);
+            }
+            fed.changed();
+        }
+
+        // local delete, as delete route does it
+        void delete(String name) {
+            synchronized (def.filesLock) {
+                Room.FileEntry entry = def.findFile(name);
+                def.markDeleted(name, def.nextTs(entry != null ? entry.time : 0));
+                def.removeFile(name);
+                def.deleteStored(name);
+                def.filesTs = def.nextTs(def.filesTs);
+            }
+            fed.changed();
+        }
+
+        Room.FileEntry file(String name) {
+            synchronized (def.filesLock) {
+                return def.findFile(name);
+            }
+        }
+    }
+
+    private final List<Node> nodes = new ArrayList<>();
+    private Node a, b, c;
+
+    @Before
+    public void startCluster() throws IOException {
+        NetworkInterface lo = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+        assumeTrue("no loopback interface", lo != null);
+        int discoveryPort = freeUdpPort(); // own group port, clusters of other tests never meet
+        nodes.add(a = new Node("A", discoveryPort, lo));
+        nodes.add(b = new Node("B", discoveryPort, lo));
+        nodes.add(c = new Node("C", discoveryPort, lo));
+        waitFor("peers found", () -> a.fed.peerCount() == 2 && b.fed.peerCount() == 2 && c.fed.peerCount() == 2);
+    }
+
+    @After
+    public void stopCluster() {
+        for (Node n : nodes) n.stop();
+    }
+
+    @Test
+    public void text_lastWriterWins() {
+        long now = System.currentTimeMillis();
+        a.writeText("from a", now);
+        waitFor("a text on all", () -> b.text().equals("from a") && c.text().equals("from a"));
+
+        // later version wins everywhere, older one is ignored by all
+        b.writeText("from b", now + 1000);
+        waitFor("b text on all", () -> a.text().equals("from b") && c.text().equals("from b"));
+        assertFalse(c.def.mergeText("stale".getBytes(StandardCharsets.UTF_8), now + 500));
+        assertEquals("from b", c.text());
+    }
+
+    @Test
+    public void files_mergedPerFileAndFetchedFromHolder() throws IOException {
+        a.upload("YS50eHQ", "content of a");
+        b.upload("Yi50eHQ", "content of b");
+        waitFor("both files on all", () -> {
+            for (Node n : nodes) if (n.file("YS50eHQ") == null || n.file("Yi50eHQ") == null) return false;
+            return true;
+        });
+
+        // entries keep holder, content stays there until fetched
+        assertNull(a.file("YS50eHQ").peer);
+        assertEquals("A", c.file("YS50eHQ").peer);
+        assertEquals("B", c.file("Yi50eHQ").peer);
+        assertFalse(new File(c.def.dir, "YS50eHQ").exists());
+        InputStream in = c.fed.fetch(c.def, "YS50eHQ", "A");
+        assertNotNull(in);
+        assertEquals("content of a", new String(readAll(in), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void tombstones_removeFileOnAllPeers() throws IOException {
+        a.upload("eC50eHQ", "doomed");
+        waitFor("file on all", () -> b.file("eC50eHQ") != null && c.file("eC50eHQ") != null);
+
+        b.delete("eC50eHQ");
+        waitFor("file gone on all", () -> a.file("eC50eHQ") == null && c.file("eC50eHQ") == null);
+        assertFalse("holder drops content", new File(a.def.dir, "eC50eHQ").exists());
+        synchronized (c.def.filesLock) {
+            assertTrue(c.def.deleted.containsKey("eC50eHQ")); // passed on for peers not seen yet
+        }
+    }
+
+    @Test
+    public void state_sendsOnlyChangesSinceVersions() throws IOException {
+        a.writeText("big text", System.currentTimeMillis());
+        a.upload("b2xk", "old");
+        String full = a.fed.dumpState(null);
+        assertTrue(full.contains("\ntext ") && full.contains("file b2xk "));
+
+        // peer that merged this view gets nothing until something changes
+        String[] room = full.substring(0, full.indexOf('\n')).split(" ");
+        String since = ":" + room[1] + ":" + room[2];
+        assertEquals("", a.fed.dumpState(since));
+
+        a.upload("bmV3", "new");
+        String delta = a.fed.dumpState(since);
+        assertTrue(delta.startsWith("room "));
+        assertFalse("text unchanged", delta.contains("\ntext "));
+        assertFalse("entry already seen", delta.contains("file b2xk "));
+        assertTrue(delta.contains("file bmV3 "));
+    }
+
+    @Test
+    public void merge_skipsNamesThatAreNotBase64url() throws IOException {
+        // peer announcing a path must not get it into any index
+        a.upload("c2FmZQ", "safe");
+        synchronized (a.def.filesLock) {
+            a.def.putFile(new Room.FileEntry("../../evil", 1, System.currentTimeMillis()));
+            a.def.filesTs = a.def.nextTs(a.def.filesTs);
+        }
+        a.fed.changed();
+        waitFor("safe file on all", () -> b.file("c2FmZQ") != null && c.file("c2FmZQ") != null);
+        assertNull(b.file("../../evil"));
+        assertNull(c.file("../../evil"));
+    }
+
+    private static void waitFor(String what, BooleanSupplier condition) {
+        long until = System.currentTimeMillis() + WAIT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > until) fail("timeout: " + what);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (InputStream src = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = src.read(buf)) > 0) out.write(buf, 0, n);
+            return out.toByteArray();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static int freeUdpPort() throws IOException {
+        try (DatagramSocket s = new DatagramSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+}
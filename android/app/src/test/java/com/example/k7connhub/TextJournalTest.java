@@ -0,0 +1,66 @@
+package com.example.k7connhub;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.*;
+
+/**
+ * Journal on disk stays bounded for large texts and restores latest version.
+ */
+public class TextJournalTest {
+    private static final int MIB = 1048576;
+
+    private ScheduledExecutorService io;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        io = Executors.newSingleThreadScheduledExecutor();
+        dir = Files.createTempDirectory("journal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        io.shutdownNow();
+    }
+
+    @Test
+    public void largeEdits_keepJournalBounded() {
+        File base = new File(dir, ".text");
+        TextJournal journal = new TextJournal(base, io);
+        journal.load();
+        long maxOnDisk = 0;
+        for (int i = 1; i <= 70; i++) {
+            journal.record(edit(i), i);
+            journal.close(); // flushes now instead of after coalesce window
+            maxOnDisk = Math.max(maxOnDisk, onDisk(base));
+        }
+
+        // history is 8 MiB, journal compacts once it outgrows it, so never near 70 MiB
+        assertTrue("journal and snapshot " + maxOnDisk + " bytes", maxOnDisk < 20L * MIB);
+
+        TextJournal reopened = new TextJournal(base, io);
+        TextJournal.Version last = reopened.load();
+        assertEquals(70, last.ts);
+        assertTrue(Arrays.equals(edit(70), last.data));
+    }
+
+    private static byte[] edit(int i) {
+        byte[] data = new byte[MIB];
+        Arrays.fill(data, (byte) ('a' + i % 26));
+        return data;
+    }
+
+    private static long onDisk(File base) {
+        return new File(base.getPath() + ".journal").length() + new File(base.getPath() + ".snapshot").length();
+    }
+}
@@ -0,0 +1,235 @@
+import argparse
+import base64
+import http.client
+import json
+import os
+import random
+import threading
+import time
+import urllib.parse
+
+# Load generator for ConnHub, simulates browser clients against android or desktop server
+# python loadgen.py --url http://127.0.0.1:8000 --clients 100 --mix state=85,text=5,upload=3,download=6,zip=1
+
+ROLES = ["state", "text", "upload", "download", "zip"]
+
+
+class Stats:
+    def __init__(self):
+        self.lock = threading.Lock()
+        self.lat = {}  # op -> list of seconds
+        self.errors = {}
+        self.bytes = {}
+
+    def add(self, op, seconds, nbytes, ok):
+        with self.lock:
+            if ok:
+                self.lat.setdefault(op, []).append(seconds)
+                self.bytes[op] = self.bytes.get(op, 0) + nbytes
+            else:
+                self.errors[op] = self.errors.get(op, 0) + 1
+
+
+class Shared:
+    # file list seen by polling clients, downloaders pick from it
+    def __init__(self):
+        self.lock = threading.Lock()
+        self.files = []
+        self.uploaded = []
+
+    def set_files(self, files):
+        with self.lock:
+            self.files = [f["name"] for f in files]
+
+    def pick(self):
+        with self.lock:
+            return random.choice(self.files) if self.files else None
+
+
+class Client:
+    # one keep-alive connection like a browser tab
+    def __init__(self, args, stats, shared, cid):
+        url = urllib.parse.urlparse(args.url)
+        self.host = url.hostname
+        self.port = url.port or 80
+        self.prefix = url.path.rstrip("/") + (f"/r/{args.room}" if args.room else "")
+        self.args = args
+        self.stats = stats
+        self.shared = shared
+        self.cid = cid
+        self.conn = None
+        self.text_ts = 0
+        self.files_ts = 0
+        self.count = 0
+
+    def request(self, op, method, path, body=None, headers=None):
+        start = time.perf_counter()
+        try:
+            if self.conn is None:
+                self.conn = http.client.HTTPConnection(self.host, self.port, timeout=self.args.timeout)
+            self.conn.request(method, self.prefix + path, body=body, headers=headers or {})
+            res = self.conn.getresponse()
+            nbytes = 0
+            data = b""
+            keep = op in ("state", "text", "text_get")
+            while True:
+                chunk = res.read(65536)
+                if not chunk:
+                    break
+                nbytes += len(chunk)
+                if keep:
+                    data += chunk
+            ok = 200 <= res.status < 300
+            if res.will_close:
+                self.close()
+        except (OSError, http.client.HTTPException):
+            self.close()
+            ok, nbytes, data = False, 0, b""
+        self.stats.add(op, time.perf_counter() - start, nbytes + (len(body) if body else 0), ok)
+        return data if ok else None
+
+    def close(self):
+        if self.conn is not None:
+            self.conn.close()
+            self.conn = None
+
+    # state poll, same ts tracking as web page
+    def poll(self):
+        data = self.request("state", "GET", f"/api/state?text_ts={self.text_ts}&files_ts={self.files_ts}")
+        if data is None:
+            return
+        state = json.loads(data)
+        text = state.get("text", {})
+        if text.get("updated"):
+            self.text_ts = text.get("ts", 0)
+            if "data" not in text:  # version only, text served raw
+                self.request("text_get", "GET", "/api/text")
+        files = state.get("files", {})
+        if files.get("updated"):
+            self.files_ts = files.get("ts", 0)
+            self.shared.set_files(files.get("data") or [])
+
+    def edit(self):
+        text = os.urandom(self.args.text_size // 2).hex()
+        data = self.request("text", "POST", "/api/text", text.encode(), {"Content-Type": "text/plain; charset=utf-8"})
+        if data is not None:
+            self.text_ts = json.loads(data).get("ts", self.text_ts)
+
+    def upload(self):
+        self.count += 1
+        name = f"loadgen-{self.cid}-{self.count}.bin"
+        encoded = base64.urlsafe_b64encode(name.encode()).decode().rstrip("=")
+        boundary = "----loadgen" + os.urandom(8).hex()
+        body = (f"--{boundary}\r\nContent-Disposition: form-data; name=\"filename\"\r\n\r\n{encoded}\r\n"
+                f"--{boundary}\r\nContent-Disposition: form-data; name=\"file\"; filename=\"{name}\"\r\n"
+                f"Content-Type: application/octet-stream\r\n\r\n").encode()
+        body += os.urandom(self.args.upload_size) + f"\r\n--{boundary}--\r\n".encode()
+        if self.request("upload", "POST", "/api/files/upload", body,
+                        {"Content-Type": f"multipart/form-data; boundary={boundary}"}) is not None:
+            with self.shared.lock:
+                self.shared.uploaded.append(encoded)
+
+    def download(self):
+        name = self.shared.pick()
+        if name is None:
+            self.poll()
+            return
+        self.request("download", "GET", f"/api/files/download/{name}")
+
+    def download_all(self):
+        self.request("zip", "GET", "/api/files/download-all")
+
+    def run(self, role, until):
+        action = {"state": self.poll, "text": self.edit, "upload": self.upload,
+                  "download": self.download, "zip": self.download_all}[role]
+        interval = {"state": self.args.poll_interval, "text": self.args.edit_interval}.get(role, self.args.transfer_interval)
+        time.sleep(random.uniform(0, interval))  # spread start
+        while time.time() < until:
+            action()
+            time.sleep(max(0.0, min(interval, until - time.time())))
+        self.close()
+
+
+def parse_mix(mix):
+    weights = {}
+    for item in mix.split(","):
+        role, _, weight = item.partition("=")
+        if role.strip() not in ROLES:
+            raise SystemExit(f"unknown role {role}, use {','.join(ROLES)}")
+        weights[role.strip()] = float(weight or 1)
+    return weights
+
+
+# split client count by mix weights, largest remainder
+def assign_roles(clients, weights):
+    total = sum(weights.values())
+    exact = {r: clients * w / total for r, w in weights.items()}
+    counts = {r: int(v) for r, v in exact.items()}
+    for r in sorted(exact, key=lambda r: exact[r] - counts[r], reverse=True)[:clients - sum(counts.values())]:
+        counts[r] += 1
+    return [r for r in weights for _ in range(counts[r])]
+
+
+def percentile(sorted_values, p):
+    if not sorted_values:
+        return 0.0
+    return sorted_values[min(len(sorted_values) - 1, int(len(sorted_values) * p))]
+
+
+def report(stats, elapsed):
+    print(f"{'op':<10}{'ok':>8}{'err':>6}{'req/s':>9}{'MB/s':>9}{'p50 ms':>10}{'p99 ms':>10}{'p999 ms':>10}")
+    ops = sorted(set(stats.lat) | set(stats.errors), key=lambda o: (ROLES + ["text_get"]).index(o))
+    total_ok = 0
+    for op in ops:
+        lat = sorted(stats.lat.get(op, []))
+        total_ok += len(lat)
+        print(f"{op:<10}{len(lat):>8}{stats.errors.get(op, 0):>6}{len(lat) / elapsed:>9.1f}"
+              f"{stats.bytes.get(op, 0) / elapsed / 1048576:>9.2f}"
+              f"{percentile(lat, 0.5) * 1000:>10.1f}{percentile(lat, 0.99) * 1000:>10.1f}{percentile(lat, 0.999) * 1000:>10.1f}")
+    print(f"total {total_ok / elapsed:.1f} req/s over {elapsed:.1f}s")
+
+
+def main():
+    parser = argparse.ArgumentParser(description="ConnHub load generator")
+    parser.add_argument("--url", default="http://127.0.0.1:8000", help="hub address")
+    parser.add_argument("--room", default="", help="room name, android server only")
+    parser.add_argument("--clients", type=int, default=50, help="simulated clients")
+    parser.add_argument("--mix", default="state=85,text=5,upload=3,download=6,zip=1", help="role weights")
+    parser.add_argument("--duration", type=float, default=30, help="seconds")
+    parser.add_argument("--poll-interval", type=float, default=3.0, help="state poll seconds, page uses 3")
+    parser.add_argument("--edit-interval", type=float, default=2.0, help="text edit seconds")
+    parser.add_argument("--transfer-interval", type=float, default=1.0, help="pause between transfers")
+    parser.add_argument("--text-size", type=int, default=4096, help="bytes per text edit")
+    parser.add_argument("--upload-size", type=int, default=1048576, help="bytes per upload")
+    parser.add_argument("--timeout", type=float, default=60, help="request timeout seconds")
+    parser.add_argument("--keep", action="store_true", help="keep uploaded files")
+    args = parser.parse_args()
+
+    roles = assign_roles(args.clients, parse_mix(args.mix))
+    print("clients: " + ", ".join(f"{r}={roles.count(r)}" for r in ROLES if r in roles))
+    stats, shared = Stats(), Shared()
+
+    # seed file list so downloaders start at once
+    Client(args, Stats(), shared, -1).poll()
+
+    start = time.time()
+    until = start + args.duration
+    threads = [threading.Thread(target=Client(args, stats, shared, i).run, args=(role, until), daemon=True)
+               for i, role in enumerate(roles)]
+    for t in threads:
+        t.start()
+    for t in threads:
+        t.join(timeout=max(0.0, until - time.time()) + args.timeout)
+    report(stats, time.time() - start)
+
+    # remove uploaded files
+    if not args.keep and shared.uploaded:
+        cleaner = Client(args, Stats(), shared, -1)
+        for name in shared.uploaded:
+            cleaner.request("delete", "DELETE", f"/api/files/delete/{name}")
+        cleaner.close()
+        print(f"deleted {len(shared.uploaded)} uploaded files")
+
+
+if __name__ == "__main__":
+    main()